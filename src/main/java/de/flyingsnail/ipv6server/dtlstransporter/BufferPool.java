@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * A pool of equally sized ByteBuffers for packets. Buffers are handed from one thread to
+ * another together with the packet they contain, and returned to the pool by the last user.
+ * <p>
+ * Direct buffers are carved from slabs: if the pool is empty, one off-heap allocation is sliced
+ * into several buffers, which avoids the per-buffer overhead of direct allocations. Heap buffers,
+ * needed where Bouncy Castle requires byte arrays, are allocated one by one. If a returned buffer
+ * does not fit into the pool any more, it is left to the garbage collector.
+ * <p>
+ * Each thread may keep a few free buffers for itself, so that a thread releasing and acquiring
+ * buffers in turn does not contend with others. This is only useful for long living threads;
+ * pools serving short lived threads should have no thread cache, and short lived threads of a
+ * pool with thread cache must release with {@link #release(ByteBuffer, boolean)} bypassing it.
+ * <p>
+ * The number of buffers outstanding, i.e. allocated and not yet left to the garbage collector,
+ * may be capped, which bounds the memory of packets queued for slow consumers. Once the cap is
+ * reached, {@link #acquire()} only hands out returned buffers and otherwise returns null; the
+ * caller has to drop its packet. Buffers in thread caches count against the cap, so it must leave
+ * room for them. A dropped direct buffer frees its memory only together with the rest of its slab.
+ */
+class BufferPool {
+  /** Number of direct buffers carved from one slab */
+  private static final int SLAB_BUFFERS = 64;
+
+  /** Default number of free buffers each thread keeps */
+  static final int DEFAULT_THREAD_CACHE_SIZE = 32;
+
+  private final int bufferSize;
+
+  private final boolean direct;
+
+  private final ArrayBlockingQueue<ByteBuffer> free;
+
+  private final int threadCacheSize;
+
+  private final ThreadLocal<ArrayDeque<ByteBuffer>> threadCache;
+
+  private final long maxAllocated;
+
+  private final AtomicLong allocatedCounter = new AtomicLong();
+
+  private final AtomicLong exhaustedCounter = new AtomicLong();
+
+  /**
+   * An uncapped pool of direct buffers with the default thread cache.
+   * @param bufferSize the capacity of each buffer in bytes
+   * @param maxPooled the maximum number of free buffers retained
+   */
+  BufferPool(int bufferSize, int maxPooled) {
+    this(bufferSize, maxPooled, true, DEFAULT_THREAD_CACHE_SIZE, 0);
+  }
+
+  /**
+   * An uncapped pool.
+   * @param bufferSize the capacity of each buffer in bytes
+   * @param maxPooled the maximum number of free buffers retained in the shared pool
+   * @param direct a boolean indicating if the buffers are off-heap
+   * @param threadCacheSize the maximum number of free buffers each thread keeps, 0 for none
+   */
+  BufferPool(int bufferSize, int maxPooled, boolean direct, int threadCacheSize) {
+    this(bufferSize, maxPooled, direct, threadCacheSize, 0);
+  }
+
+  /**
+   * @param bufferSize the capacity of each buffer in bytes
+   * @param maxPooled the maximum number of free buffers retained in the shared pool
+   * @param direct a boolean indicating if the buffers are off-heap
+   * @param threadCacheSize the maximum number of free buffers each thread keeps, 0 for none
+   * @param maxAllocated the maximum number of buffers outstanding, 0 for unlimited
+   */
+  BufferPool(int bufferSize, int maxPooled, boolean direct, int threadCacheSize, long maxAllocated) {
+    this.bufferSize = bufferSize;
+    this.direct = direct;
+    this.free = new ArrayBlockingQueue<>(maxPooled);
+    this.threadCacheSize = threadCacheSize;
+    this.threadCache = ThreadLocal.withInitial(() -> new ArrayDeque<>(threadCacheSize));
+    this.maxAllocated = maxAllocated > 0 ? maxAllocated : Long.MAX_VALUE;
+  }
+
+  /**
+   * @return a cleared ByteBuffer of bufferSize capacity, owned by the caller, or null if the
+   *         pool is empty and the cap on allocated buffers is reached.
+   */
+  @Nullable ByteBuffer acquire() {
+    ByteBuffer bb = threadCacheSize > 0 ? threadCache.get().pollLast() : null;
+    if (bb == null) {
+      bb = free.poll();
+    }
+    if (bb == null) {
+      bb = allocate();
+    }
+    return bb;
+  }
+
+  /**
+   * Allocate new buffers; for direct buffers, a slab of them, of which all but the one returned
+   * go to the pool. Slabs are cut short at the cap.
+   * @return the new buffer, or null if the cap is reached
+   */
+  private @Nullable ByteBuffer allocate() {
+    final int wanted = direct ? Math.max(1, Math.min(SLAB_BUFFERS, free.remainingCapacity() + 1)) : 1;
+    long allocated;
+    int count;
+    do {
+      allocated = allocatedCounter.get();
+      count = (int)Math.min(wanted, maxAllocated - allocated);
+      if (count <= 0) {
+        exhaustedCounter.incrementAndGet();
+        return null;
+      }
+    } while (!allocatedCounter.compareAndSet(allocated, allocated + count));
+
+    if (!direct) {
+      return ByteBuffer.allocate(bufferSize);
+    }
+    final ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * count);
+    ByteBuffer first = null;
+    for (int i = 0; i < count; i++) {
+      slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+      final ByteBuffer bb = slab.slice();
+      if (first == null) {
+        first = bb;
+      } else if (!free.offer(bb)) {
+        // the pool filled up concurrently
+        allocatedCounter.decrementAndGet();
+      }
+    }
+    return first;
+  }
+
+  /**
+   * Return a buffer to the pool, preferably to the calling thread's cache. The caller must not use
+   * it afterwards. Buffers that were not acquired from a pool of this kind are ignored.
+   * @param bb a ByteBuffer previously acquired from this pool
+   */
+  void release(@NonNull ByteBuffer bb) {
+    release(bb, true);
+  }
+
+  /**
+   * Return a buffer to the pool. The caller must not use it afterwards. Buffers that were not
+   * acquired from a pool of this kind are ignored.
+   * @param bb a ByteBuffer previously acquired from this pool
+   * @param cache a boolean indicating if the buffer may go to the calling thread's cache; false
+   *        for threads that end soon, as a thread's cache dies with it.
+   */
+  void release(@NonNull ByteBuffer bb, boolean cache) {
+    if (bb.capacity() != bufferSize || bb.isDirect() != direct) {
+      return;
+    }
+    bb.clear();
+    if (cache && threadCacheSize > 0) {
+      final ArrayDeque<ByteBuffer> threadFree = threadCache.get();
+      if (threadFree.size() < threadCacheSize) {
+        threadFree.addLast(bb);
+        return;
+      }
+    }
+    if (!free.offer(bb)) {
+      // left to the garbage collector, no longer outstanding
+      allocatedCounter.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return the capacity of each buffer
+   */
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * @return the number of buffers outstanding, i.e. allocated and not dropped from the pool since
+   */
+  long getAllocatedCount() {
+    return allocatedCounter.get();
+  }
+
+  /**
+   * @return the number of times {@link #acquire()} returned null because the cap was reached
+   */
+  long getExhaustedCount() {
+    return exhaustedCounter.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s buffer pool of %d bytes: outstanding %d, shared free %d, exhausted %d",
+        direct ? "direct" : "heap", bufferSize, allocatedCounter.get(), free.size(),
+        exhaustedCounter.get());
+  }
+}
@@ -22,6 +22,7 @@ package de.flyingsnail.ipv6server.dtlstransporter;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.CertPathBuilder;
@@ -42,15 +43,32 @@ import java.util.Base64;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 import org.bouncycastle.tls.AlertDescription;
 import org.bouncycastle.tls.TlsFatalAlert;
 import org.bouncycastle.tls.crypto.TlsCertificate;
+import org.eclipse.jdt.annotation.Nullable;
 
 /**
+ * Verifies client certificate chains against the trusted CA. One instance is shared by all
+ * handshakes. CertificateFactory is not safe for concurrent use, so each check borrows one from a
+ * pool of idle ones; CertPathBuilder keeps revocation state between builds, so each check uses a
+ * new one.
+ * <p>
+ * Successful validations are remembered by the SHA-256 of the presented chain, until the first
+ * certificate of the chain expires, but no longer than a configured time, which bounds how late a
+ * revocation takes effect. A client reconnecting with the same chain skips the PKIX validation.
+ * <p>
+ * With a {@link CrlStore}, revocation is checked against its CRLs in memory, validations are
+ * remembered no longer than the next update of the CRLs involved, and all of them are forgotten
+ * when the CRLs are re-read.
  * @author pelzi
  *
  */
@@ -58,20 +76,66 @@ class ChainChecker {
   
   private final Logger logger = Logger.getLogger(ChainChecker.class.getName());
   
-  private final CertificateFactory certificateFactory;
+  /** CertificateFactories not currently in use */
+  private final ConcurrentLinkedQueue<CertificateFactory> idleFactories = new ConcurrentLinkedQueue<>();
 
-  private final PKIXRevocationChecker revocationChecker;
+  /** A successful validation, remembered until validUntil */
+  private static class Validation {
+    /** The expiry date of the client certificate */
+    private final Date expiry;
+    /** Time in milliseconds since the epoch until which the validation may be reused */
+    private final long validUntil;
 
-  private final CertPathBuilder certPathBuilder;
+    private Validation(Date expiry, long validUntil) {
+      this.expiry = expiry;
+      this.validUntil = validUntil;
+    }
+  }
+
+  /** Successful validations by Base64 of the chain's SHA-256, least recently used first; guarded by itself */
+  private final LinkedHashMap<String, Validation> validations;
+
+  /** Maximum number of remembered validations, 0 disables the cache */
+  private final int cacheSize;
+
+  /** Maximum time a validation is remembered in milliseconds */
+  private final long cacheTtl;
+
+  /** The CrlStore generation that the remembered validations are based on; guarded by validations */
+  private long cacheGeneration;
+
+  /** The local CRLs, or null if CRLs are fetched from the distribution points */
+  private final @Nullable CrlStore crlStore;
+
+  private final LongAdder hitCounter = new LongAdder();
+
+  private final LongAdder missCounter = new LongAdder();
+
+  /** Options of the revocation check */
+  private static final Set<Option> REVOCATION_OPTIONS = EnumSet.of(Option.PREFER_CRLS, Option.NO_FALLBACK, Option.SOFT_FAIL); // TODO remove SOFT_FAIL as soon as we have CRL publication under control
 
   private final Set<TrustAnchor> trustAnchors;
   
-  public ChainChecker (final TlsCertificate trustedCA) {
-    try {
-      certificateFactory = CertificateFactory.getInstance("x.509", "BC");
-    } catch (CertificateException | NoSuchProviderException e) {
-      throw new IllegalStateException("No x.509 certificate factory available");
-    }
+  /**
+   * @param trustedCA the TlsCertificate of the CA that client certificates must be issued by
+   * @param cacheSize the maximum number of successful validations to remember, 0 for none
+   * @param cacheTtl the maximum time in milliseconds to remember a successful validation
+   * @param crlStore the CrlStore to check revocation against, or null to fetch CRLs from the
+   *        distribution points named in the certificates
+   */
+  public ChainChecker (final TlsCertificate trustedCA, int cacheSize, long cacheTtl, @Nullable CrlStore crlStore) {
+    this.cacheSize = cacheSize;
+    this.cacheTtl = cacheTtl;
+    this.crlStore = crlStore;
+    this.validations = new LinkedHashMap<String, Validation>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Validation> eldest) {
+        return size() > ChainChecker.this.cacheSize;
+      }
+    };
+    final CertificateFactory certificateFactory = newCertificateFactory();
 
     trustAnchors = new HashSet<>();
     try {
@@ -85,14 +149,15 @@ class ChainChecker {
       throw new IllegalStateException("Cannot create trust anchors", e);
     }
     
+    idleFactories.offer(certificateFactory);
+  }
+
+  private static CertificateFactory newCertificateFactory() {
     try {
-      certPathBuilder = CertPathBuilder.getInstance("PKIX", "BC");
-    } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
-      throw new IllegalStateException("No PKIX cert path builder available", e);
+      return CertificateFactory.getInstance("x.509", "BC");
+    } catch (CertificateException | NoSuchProviderException e) {
+      throw new IllegalStateException("No x.509 certificate factory available");
     }
-    
-    revocationChecker = (PKIXRevocationChecker)certPathBuilder.getRevocationChecker();
-    revocationChecker.setOptions(EnumSet.of(Option.PREFER_CRLS, Option.NO_FALLBACK, Option.SOFT_FAIL)); // TODO remove SOFT_FAIL as soon as we have CRL publication under control
   }
 
   /**
@@ -102,37 +167,113 @@ class ChainChecker {
    * @return the Date when the certificate expires.
    */
   public Date checkChain(TlsCertificate[] chain) throws IOException, TlsFatalAlert {
+    final byte[][] encoded = new byte[chain.length][];
+    for (int i = 0; i < chain.length; i++) {
+      encoded[i] = chain[i].getEncoded();
+    }
+    final long now = System.currentTimeMillis();
+    final long generation = crlStore == null ? 0 : crlStore.getGeneration();
+    String key = null;
+    if (cacheSize > 0) {
+      key = fingerprint(encoded);
+      final Validation cached;
+      synchronized (validations) {
+        if (generation != cacheGeneration) {
+          // the CRLs changed, revocations may have been added
+          validations.clear();
+          cacheGeneration = generation;
+        }
+        cached = validations.get(key);
+        if (cached != null && cached.validUntil <= now) {
+          validations.remove(key);
+        }
+      }
+      if (cached != null && cached.validUntil > now) {
+        hitCounter.increment();
+        logger.info("Peer authenticated by previously validated certificate chain");
+        return cached.expiry;
+      }
+      missCounter.increment();
+    }
+
+    CertificateFactory certificateFactory = idleFactories.poll();
+    if (certificateFactory == null) {
+      certificateFactory = newCertificateFactory();
+    }
+    final Validation validation;
+    try {
+      validation = checkChain(chain, encoded, certificateFactory, now);
+    } finally {
+      idleFactories.offer(certificateFactory);
+    }
+    if (key != null) {
+      synchronized (validations) {
+        // not if the CRLs changed during validation
+        if (generation == cacheGeneration) {
+          validations.put(key, validation);
+        }
+      }
+    }
+    return validation.expiry;
+  }
+
+  /**
+   * @param encoded the encoded certificates of a chain
+   * @return the Base64 encoded SHA-256 of the concatenated certificates
+   */
+  private static String fingerprint(byte[][] encoded) {
+    final MessageDigest sha256;
+    try {
+      sha256 = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("No SHA-256 available", e);
+    }
+    for (byte[] certificate: encoded) {
+      sha256.update(certificate);
+    }
+    return Base64.getEncoder().encodeToString(sha256.digest());
+  }
+
+  private Validation checkChain(TlsCertificate[] chain, byte[][] encoded, CertificateFactory certificateFactory, long now) throws IOException, TlsFatalAlert {
     final X509CertSelector target = new X509CertSelector();
     final List<X509Certificate> intermediates = new ArrayList<X509Certificate>(chain.length);
     Date expire;
+    long validUntil = now + cacheTtl;
     // some pointless conversions required
     try {
-      X509Certificate clientStdCert = (X509Certificate)certificateFactory.generateCertificate(
-          new ByteArrayInputStream(chain[0].getEncoded())
-      );
-      target.setCertificate(clientStdCert);
-      expire = clientStdCert.getNotAfter();
-
-      for (TlsCertificate interCert: chain) {
-        intermediates.add((X509Certificate)certificateFactory.generateCertificate(
-            new ByteArrayInputStream(interCert.getEncoded())
-        ));
+      for (byte[] certificate: encoded) {
+        X509Certificate stdCert = (X509Certificate)certificateFactory.generateCertificate(
+            new ByteArrayInputStream(certificate)
+        );
+        intermediates.add(stdCert);
+        validUntil = Math.min(validUntil, stdCert.getNotAfter().getTime());
+        final Date nextUpdate = crlStore == null ? null : crlStore.getNextUpdate(stdCert.getIssuerX500Principal());
+        if (nextUpdate != null) {
+          validUntil = Math.min(validUntil, nextUpdate.getTime());
+        }
       }
     } catch (CertificateException e) {
       throw new TlsFatalAlert(AlertDescription.certificate_unknown, e);
     }
+    X509Certificate clientStdCert = intermediates.get(0);
+    target.setCertificate(clientStdCert);
+    expire = clientStdCert.getNotAfter();
     
     try {
       PKIXBuilderParameters params = new PKIXBuilderParameters(trustAnchors, target);
       CertStoreParameters intermedParam = new CollectionCertStoreParameters(intermediates);
       params.addCertStore(CertStore.getInstance("Collection", intermedParam));
+      if (crlStore != null) {
+        params.addCertStore(crlStore.getCertStore());
+      }
+      // a new builder per check, a re-used one would remember revocation results
+      final CertPathBuilder certPathBuilder = CertPathBuilder.getInstance("PKIX", "BC");
+      PKIXRevocationChecker revocationChecker = (PKIXRevocationChecker)certPathBuilder.getRevocationChecker();
+      revocationChecker.setOptions(REVOCATION_OPTIONS);
       params.addCertPathChecker(revocationChecker);
-//      PKIXExtendedParameters extParams = new PKIXExtendedParameters.Builder(params)
-//          .addCRLStore(pKIXCRLStore)
-//          .build();
       certPathBuilder.build(params);
       logger.info("Peer authenticated by valid certificate chain");
-    } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+    } catch (NoSuchAlgorithmException | NoSuchProviderException | InvalidAlgorithmParameterException e) {
       throw new TlsFatalAlert(AlertDescription.internal_error, e);
     } catch (CertPathBuilderException e) {
       StringBuffer diagnostics = new StringBuffer("Failed to verify cert chain:\n");
@@ -145,7 +286,30 @@ class ChainChecker {
 
       throw new TlsFatalAlert (AlertDescription.unknown_ca, e);
     }
-    return expire;
+    return new Validation(expire, validUntil);
+  }
+
+  /**
+   * @return the number of chains found in the cache of validations
+   */
+  long getHitCount() {
+    return hitCounter.sum();
+  }
+
+  /**
+   * @return the number of chains not found in the cache of validations, and validated by PKIX
+   */
+  long getMissCount() {
+    return missCounter.sum();
+  }
+
+  @Override
+  public String toString() {
+    final int cached;
+    synchronized (validations) {
+      cached = validations.size();
+    }
+    return String.format("chain checker: cached validations %d, hits %d, misses %d", cached, hitCounter.sum(), missCounter.sum());
   }
 
 }
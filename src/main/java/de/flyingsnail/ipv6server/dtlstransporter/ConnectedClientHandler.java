@@ -25,18 +25,58 @@ import org.bouncycastle.tls.DTLSTransport;
 
 import java.net.InetSocketAddress;
 
+import org.eclipse.jdt.annotation.Nullable;
+
 /**
  * This callback interface must be implemented in order to handle a DTLS based protocol with a single
  * client. The callback will be triggered on successful client validation and TLS parameter negotiation.
  */
 interface ConnectedClientHandler {
+    /**
+     * Offered by transports that can wake up a client's handler when a datagram arrives, so that
+     * the handler may release its thread while the client is idle.
+     */
+    interface Hibernation {
+        /**
+         * Release the calling thread until the next datagram for this client arrives, its
+         * transport is closed, or wakeMillis have passed; then resume is run on a new thread.
+         * Waking up periodically lets the handler run the DTLS heartbeat, which only happens
+         * while receiving.
+         * @param resume the Runnable continuing to handle the client
+         * @param wakeMillis the longest time to hibernate in milliseconds, 0 for no limit
+         * @return true if the caller must now return, false if a datagram arrived meanwhile and
+         *         the caller must continue receiving itself
+         */
+        boolean hibernate(Runnable resume, long wakeMillis);
+    }
+
+    /**
+     * Offered by transports that route a client's records by DTLS connection ID, so that the
+     * client may keep its session when its address changes.
+     */
+    interface PeerMigration {
+        /**
+         * Confirm that the record received last was authenticated, so that the transport may
+         * move to the address it came from.
+         */
+        void confirmPeer();
+    }
+
     /**
      * Handle a new authenticated client with valid DTLS session. Note that each call tends to be
      * done in a new thread and it is OK to let handle run as long as the DTLS session can be kept
-     * alive.
+     * alive. If the handler hibernates the session, handle returns while the session continues;
+     * otherwise the session has ended when handle returns, and the caller closes the DTLSTransport.
+     * A handler resumed after hibernation closes the DTLSTransport itself when the session ends.
      * @param server a IPv6DTlsServer handling the DTLS endpoint for the specific authenticated client
      * @param dtlsTransport the DTLSTransport representing the valid DTLS session.
      * @param client the InetSocketAddress identifying the connected client.
+     * @param hibernation the Hibernation offered by the client's datagram transport, or null
+     *        if the handler must keep its thread for the session's lifetime.
+     * @param migration the PeerMigration offered by the client's datagram transport, or null
+     *        if the client's address is fixed for the session's lifetime.
+     * @return true if the session was hibernated and continues, false if it ended
      */
-    void handle(IPv6DTlsServer server, DTLSTransport dtlsTransport, InetSocketAddress client);
+    boolean handle(IPv6DTlsServer server, DTLSTransport dtlsTransport, InetSocketAddress client,
+            @Nullable Hibernation hibernation, @Nullable PeerMigration migration);
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.cert.CRL;
+import java.security.cert.CRLException;
+import java.security.cert.CertStore;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.X509CRL;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Certificate revocation lists kept in memory, so that checking a client's chain never waits for
+ * a CRL to be fetched from the network. The CRLs are read from a file or from all files in a
+ * directory, PEM or DER encoded, and indexed by issuer; of several CRLs by the same issuer, the
+ * most recent one is used.
+ * <p>
+ * A background thread re-reads the CRLs whenever a file changed. Each change increments the
+ * {@link #getGeneration() generation}, which tells users to forget results based on older CRLs.
+ * If re-reading fails, the CRLs read before stay in effect.
+ */
+class CrlStore {
+  private static final Logger logger = Logger.getLogger(CrlStore.class.getName());
+
+  private final @NonNull Path location;
+
+  private final long refreshPeriod;
+
+  /** The current CRLs by issuer; replaced as a whole, never modified */
+  private volatile @NonNull Map<X500Principal, X509CRL> crls = Collections.emptyMap();
+
+  /** The current CRLs as a CertStore for PKIX */
+  private volatile @NonNull CertStore certStore;
+
+  /** Names, sizes and modification times of the files read last, to detect changes */
+  private volatile String fileState = "";
+
+  private final AtomicLong generation = new AtomicLong();
+
+  private final AtomicLong failedRefreshCounter = new AtomicLong();
+
+  /**
+   * Read the CRLs.
+   * @param location the Path of a CRL file, or of a directory containing CRL files
+   * @param refreshPeriod the time in milliseconds between checks for changed files
+   * @throws IOException if the CRLs cannot be read
+   */
+  CrlStore(@NonNull Path location, long refreshPeriod) throws IOException {
+    this.location = location;
+    this.refreshPeriod = refreshPeriod;
+    this.certStore = asCertStore(crls);
+    refresh();
+  }
+
+  /**
+   * Start the daemon thread re-reading changed CRLs.
+   */
+  void start() {
+    Thread refresher = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(refreshPeriod);
+        } catch (InterruptedException e) {
+          return;
+        }
+        try {
+          refresh();
+        } catch (IOException | RuntimeException e) {
+          failedRefreshCounter.incrementAndGet();
+          logger.log(Level.WARNING, "Failed to re-read CRLs from " + location + ", keeping the previous ones", e);
+        }
+      }
+    }, "CRL refresh");
+    refresher.setDaemon(true);
+    refresher.start();
+  }
+
+  /**
+   * Re-read the CRLs if any file changed.
+   * @return a boolean indicating if the CRLs were re-read
+   * @throws IOException if the CRLs cannot be read
+   */
+  synchronized boolean refresh() throws IOException {
+    final List<Path> files = listFiles();
+    final StringBuilder state = new StringBuilder();
+    for (Path file: files) {
+      state.append(file).append(' ').append(Files.size(file)).append(' ')
+          .append(Files.getLastModifiedTime(file).toMillis()).append('\n');
+    }
+    if (state.toString().equals(fileState)) {
+      return false;
+    }
+
+    final CertificateFactory certificateFactory;
+    try {
+      certificateFactory = CertificateFactory.getInstance("X.509", "BC");
+    } catch (CertificateException | NoSuchProviderException e) {
+      throw new IllegalStateException("No x.509 certificate factory available", e);
+    }
+    final Map<X500Principal, X509CRL> newCrls = new HashMap<>();
+    for (Path file: files) {
+      try (InputStream in = Files.newInputStream(file)) {
+        for (CRL crl: certificateFactory.generateCRLs(in)) {
+          final X509CRL x509Crl = (X509CRL)crl;
+          newCrls.merge(x509Crl.getIssuerX500Principal(), x509Crl,
+              (known, other) -> other.getThisUpdate().after(known.getThisUpdate()) ? other : known);
+        }
+      } catch (CRLException e) {
+        throw new IOException("Cannot parse CRLs in " + file, e);
+      }
+    }
+
+    final Date now = new Date();
+    for (X509CRL crl: newCrls.values()) {
+      if (crl.getNextUpdate() != null && crl.getNextUpdate().before(now)) {
+        logger.warning(() -> "CRL of " + crl.getIssuerX500Principal() + " is outdated since " + crl.getNextUpdate()
+            + ", certificates of this issuer will not be accepted");
+      }
+    }
+
+    certStore = asCertStore(newCrls);
+    crls = newCrls;
+    fileState = state.toString();
+    generation.incrementAndGet();
+    logger.info(() -> "Read " + newCrls.size() + " CRLs from " + location);
+    return true;
+  }
+
+  private @NonNull List<Path> listFiles() throws IOException {
+    if (!Files.isDirectory(location)) {
+      return List.of(location);
+    }
+    try (Stream<Path> entries = Files.list(location)) {
+      return entries.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+  }
+
+  private static @NonNull CertStore asCertStore(@NonNull Map<X500Principal, X509CRL> crls) {
+    try {
+      return CertStore.getInstance("Collection", new CollectionCertStoreParameters(crls.values()));
+    } catch (InvalidAlgorithmParameterException | NoSuchAlgorithmException e) {
+      throw new IllegalStateException("No collection cert store available", e);
+    }
+  }
+
+  /**
+   * @return the current CRLs as a CertStore, to add to PKIX parameters
+   */
+  @NonNull CertStore getCertStore() {
+    return certStore;
+  }
+
+  /**
+   * @param issuer the X500Principal of a certificate issuer
+   * @return the current CRL of this issuer, or null if there is none
+   */
+  @Nullable X509CRL getCrl(@NonNull X500Principal issuer) {
+    return crls.get(issuer);
+  }
+
+  /**
+   * @param issuer the X500Principal of a certificate issuer
+   * @return the Date when the issuer's current CRL is superseded, or null if unknown
+   */
+  @Nullable Date getNextUpdate(@NonNull X500Principal issuer) {
+    final X509CRL crl = crls.get(issuer);
+    return crl == null ? null : crl.getNextUpdate();
+  }
+
+  /**
+   * @return a number that changes each time the CRLs are re-read
+   */
+  long getGeneration() {
+    return generation.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("CRL store %s: CRLs %d, generation %d, failed refreshes %d", location, crls.size(),
+        generation.get(), failedRefreshCounter.get());
+  }
+}
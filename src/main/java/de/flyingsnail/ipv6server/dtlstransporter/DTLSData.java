@@ -1,24 +1,46 @@
 package de.flyingsnail.ipv6server.dtlstransporter;
 
-import java.net.Inet6Address;
+import java.nio.ByteBuffer;
 import java.rmi.NoSuchObjectException;
 import java.util.Objects;
 
 import org.bouncycastle.tls.DTLSTransport;
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 
 public interface DTLSData {
   public class ServerTransportTupel {
+    private Ipv6Prefix prefix;
     private DTLSTransport transport;
     private IPv6DTlsServer server;
+    private OutboundQueue outboundQueue;
+    private TokenBucket upstreamLimit;
+    private TokenBucket downstreamLimit;
     /**
+     * @param prefix the Ipv6Prefix routed to the client
      * @param transport
      * @param server
+     * @param queueCapacity the number of packets that may wait for sending to this session
+     * @param bufferPool the BufferPool that queued packets are returned to
+     * @param upstreamLimit the TokenBucket limiting packets from the client, or null if unlimited
+     * @param downstreamLimit the TokenBucket limiting packets to the client, or null if unlimited
      */
-    public ServerTransportTupel(@NonNull IPv6DTlsServer server, @NonNull DTLSTransport transport) {
+    public ServerTransportTupel(@NonNull Ipv6Prefix prefix, @NonNull IPv6DTlsServer server, @NonNull DTLSTransport transport,
+        int queueCapacity, @NonNull BufferPool bufferPool,
+        @Nullable TokenBucket upstreamLimit, @Nullable TokenBucket downstreamLimit) {
       super();
+      this.prefix = Objects.requireNonNull(prefix);
       this.transport = Objects.requireNonNull(transport);
       this.server = Objects.requireNonNull(server);
+      this.outboundQueue = new OutboundQueue(transport, queueCapacity, bufferPool);
+      this.upstreamLimit = upstreamLimit;
+      this.downstreamLimit = downstreamLimit;
+    }
+    /**
+     * @return the prefix routed to the client
+     */
+    public @NonNull Ipv6Prefix getPrefix() {
+      return prefix;
     }
     /**
      * @return the transport
@@ -32,33 +54,75 @@ public interface DTLSData {
     public @NonNull IPv6DTlsServer getServer() {
       return server;
     }
+    /**
+     * @return the queue of packets waiting to be sent to this session
+     */
+    public @NonNull OutboundQueue getOutboundQueue() {
+      return outboundQueue;
+    }
+    /**
+     * @return the TokenBucket limiting packets from the client, or null if unlimited
+     */
+    public @Nullable TokenBucket getUpstreamLimit() {
+      return upstreamLimit;
+    }
+    /**
+     * @return the TokenBucket limiting packets to the client, or null if unlimited
+     */
+    public @Nullable TokenBucket getDownstreamLimit() {
+      return downstreamLimit;
+    }
+    @Override
+    public String toString() {
+      return String.format("%s, upstream limit %s, downstream limit %s", outboundQueue,
+          upstreamLimit == null ? "none" : upstreamLimit, downstreamLimit == null ? "none" : downstreamLimit);
+    }
     
   }
 
   /**
-   * Retrieve the ServerTransportTupel object with the given IPv6 address.
-   * @param sender the Inet6Address to get a server for
-   * @return the DTLSTransport handling sender
-   * @throws NoSuchObjectException in case no server is available for that address
+   * Retrieve the ServerTransportTupel object registered for exactly the given IPv6 prefix.
+   * @param prefix the Ipv6Prefix to get a server for
+   * @return the DTLSTransport handling prefix
+   * @throws NoSuchObjectException in case no server is available for that prefix
    */
-  @NonNull ServerTransportTupel getServerTransport(@NonNull Inet6Address sender)
+  @NonNull ServerTransportTupel getServerTransport(@NonNull Ipv6Prefix prefix)
       throws NoSuchObjectException;
 
+  /**
+   * Retrieve the ServerTransportTupel object for the IPv6 address stored in a ByteBuffer, usually
+   * the source or destination field of a packet header, by longest prefix match. This method does
+   * not allocate and does not alter position or limit of the buffer.
+   * @param packet the ByteBuffer holding the address in network byte order
+   * @param addressOffset the absolute index of the address' first byte in packet
+   * @return the ServerTransportTupel handling this address, or null if there is none
+   */
+  @Nullable ServerTransportTupel getServerTransport(@NonNull ByteBuffer packet, int addressOffset);
   
   /**
-   * Register an established DTLS session with the corresponding IPv6Address
-   * @param sender the Inet6Address of the corresponding IPv6 address of this client
+   * Register an established DTLS session with the corresponding IPv6 prefix
+   * @param prefix the Ipv6Prefix delegated to this client, possibly a single address
    * @param dtlsServer the IPv6DtlsServer that is controlling the connection of this client
    * @param dtls the DTLSTransport representing the connection.
+   * @return the ServerTransportTupel that was registered
    */
-  void putServerAndTransport(@NonNull Inet6Address sender, @NonNull IPv6DTlsServer dtlsServer, @NonNull DTLSTransport dtls);
+  @NonNull ServerTransportTupel putServerAndTransport(@NonNull Ipv6Prefix prefix, @NonNull IPv6DTlsServer dtlsServer, @NonNull DTLSTransport dtls);
   
   /**
    * Remove an DTLS session from the registry (probably after the session ended).
-   * @param sender the Inet6Address identifying the client.
+   * @param prefix the Ipv6Prefix identifying the client.
    * @return the ServerTransportTupel that was removed
    */
-  ServerTransportTupel removeServerTransport(@NonNull Inet6Address sender);
+  ServerTransportTupel removeServerTransport(@NonNull Ipv6Prefix prefix);
+
+  /**
+   * Remove a DTLS session from the registry, but only if the client's prefix is still mapped to it.
+   * This keeps a terminating session from removing the session of a client that has reconnected
+   * in the meantime.
+   * @param session the ServerTransportTupel to remove
+   * @return a boolean indicating if the session was removed
+   */
+  boolean removeServerTransport(@NonNull ServerTransportTupel session);
  
   
   /**
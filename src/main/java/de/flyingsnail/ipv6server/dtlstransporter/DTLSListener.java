@@ -25,7 +25,12 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,43 +43,162 @@ import org.bouncycastle.tls.DatagramSender;
 import org.bouncycastle.tls.DatagramTransport;
 import org.bouncycastle.tls.TlsFatalAlert;
 import org.bouncycastle.tls.UDPTransport;
-import org.bouncycastle.tls.crypto.impl.bc.BcTlsCrypto;
 
+/**
+ * Listens for DTLS clients on the configured port, answers their ClientHellos with
+ * HelloVerifyRequests and establishes a session for each verified client.
+ * <p>
+ * In socket mode, each client gets its own DatagramSocket, bound to the same port and connected
+ * to the client, and the kernel demultiplexes. In channel mode, all clients share the listening
+ * DatagramChannel; the listening thread demultiplexes by remote address and hands each datagram
+ * to the client's {@link DemuxDatagramTransport}. Clients supporting DTLS connection IDs
+ * (RFC 9146) get one in channel mode; their records are routed by that ID first, so that their
+ * session survives a change of address, e.g. by NAT rebinding.
+ * <p>
+ * With more than one listener thread, each thread has its own listening socket bound with
+ * SO_REUSEPORT, and its own DTLSVerifier. The kernel spreads clients across these sockets by
+ * hashing their addresses, so a client always reaches the same listener, and the verification of
+ * new clients runs in parallel.
+ */
 public class DTLSListener {
     public static final String TRUSTED_ISSUER = "C=DE,ST=Hessen,L=Bad Vilbel,O=Flying Furry CSnail Creature,OU=Private Cloud,CN=Commander Pelzi,E=ca@flying-snail.de";
     private final Logger logger = Logger.getLogger(DTLSListener.class.getName());
     private final int mtu;
     static final int MAX_MTU = 64*1024;
     private final static int OVERHEAD = 92;
+    /** Maximum number of datagrams waiting for a client's DTLS engine in channel mode */
+    private final static int INBOUND_QUEUE_LENGTH = 256;
     private final int heartbeat;
-    private DatagramSocket socket;
+    /** Run handshakes and client handlers on virtual threads */
+    private final boolean virtualThreads;
+    /** The server's credentials, loaded once and shared by all handshakes */
+    private final ServerCredentials credentials;
+    /** The sessions that returning clients may resume, null if resumption is disabled */
+    private final SessionCache sessionCache;
+    /**
+     * The transports of clients in channel mode, by connection ID. Shared by all listener threads,
+     * as a client changing its address may reach a different one.
+     */
+    private final ConcurrentHashMap<ByteBuffer, DemuxDatagramTransport> connectionIds = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    /** The listening socket of one listener thread, in one of the three flavours */
+    private static class Shard {
+        /** The listening socket in socket mode, else null */
+        private DatagramSocket socket;
+
+        /** The shared channel in channel mode with the java engine, else null */
+        private DatagramChannel channel;
+
+        /** The shared socket in channel mode with the native engine, else null */
+        private NativeDatagramEngine engine;
+
+        /** Sends datagrams on the shared channel or socket in channel mode */
+        private DemuxDatagramTransport.Sender channelSender;
+
+        /** The transports of clients in channel mode, by remote address */
+        private final ConcurrentHashMap<InetSocketAddress, DemuxDatagramTransport> clients = new ConcurrentHashMap<>();
+    }
+
+    private final Shard[] shards;
 
     private InetSocketAddress myIpv4;
 
-    private boolean shouldRun;
+    private volatile boolean shouldRun;
 
     public DTLSListener (TransporterParams params) throws IOException {
         myIpv4 = new InetSocketAddress(params.ipv4Pop, params.portPop);
         mtu = params.mtu;
         heartbeat = params.heartbeat;
-        // UDP bound, unconnected socket (listener)
-        socket = new DatagramSocket(null);
-        socket.setSoTimeout(0); // no timeout
-        socket.setReuseAddress(true);
-        socket.bind(myIpv4);
+        virtualThreads = params.virtualThreads;
+        // fail on misconfigured credentials before binding any socket
+        credentials = ServerCredentials.load(params.chainCacheSize, params.chainCacheTtlMs, params.crlStore);
+        sessionCache = params.sessionCacheSize > 0 ? new SessionCache(params.sessionCacheSize, params.sessionCacheTtlMs) : null;
+        final boolean reusePort = params.listenerThreads > 1;
+        shards = new Shard[Math.max(1, params.listenerThreads)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = openShard(params, reusePort);
+        }
 
-        logger.info("DTLSListener constructed");
+        logger.info("DTLSListener constructed in " + (params.channelMode ? "channel" : "socket") + " mode with "
+                + shards.length + " listener threads");
     }
 
+    private Shard openShard(TransporterParams params, boolean reusePort) throws IOException {
+        final Shard shard = new Shard();
+        if (params.channelMode && params.mmsgBatch > 0) {
+            // one native UDP socket for all clients, read and written in batches; we never send more than
+            // a record of mtu size, but must accept whatever the clients send
+            final NativeDatagramEngine engine = new NativeDatagramEngine(myIpv4, params.mmsgBatch, MAX_MTU,
+                    mtu + 2*OVERHEAD, reusePort);
+            engine.start();
+            shard.engine = engine;
+            shard.channelSender = engine::send;
+        } else if (params.channelMode) {
+            // one UDP bound, unconnected channel for all clients
+            final DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(myIpv4);
+            shard.channel = channel;
+            shard.channelSender = channel::send;
+        } else {
+            // UDP bound, unconnected socket (listener)
+            final DatagramSocket socket = new DatagramSocket(null);
+            socket.setSoTimeout(0); // no timeout
+            socket.setReuseAddress(true);
+            if (reusePort) {
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            socket.bind(myIpv4);
+            shard.socket = socket;
+        }
+        return shard;
+    }
+
+    /**
+     * Run the listener threads until closed. The calling thread serves as the first listener
+     * thread, the others are started here.
+     */
     public void listen(ConnectedClientHandler connectedClientHandler) throws IOException {
+        shouldRun = true;
+        for (int i = 1; i < shards.length; i++) {
+            final Shard shard = shards[i];
+            final Thread listenerThread = new Thread(
+                    () -> {
+                        try {
+                            listen(connectedClientHandler, shard);
+                        } catch (IOException e) {
+                            if (shouldRun) {
+                                logger.log(Level.SEVERE, "Listener thread failed, closing DTLSListener", e);
+                                close();
+                            }
+                        }
+                    },
+                    "DTLS listener #" + i);
+            listenerThread.setDaemon(true);
+            listenerThread.start();
+        }
+        listen(connectedClientHandler, shards[0]);
+    }
+
+    private void listen(ConnectedClientHandler connectedClientHandler, Shard shard) throws IOException {
+        if (shard.channelSender != null) {
+            listenOnChannel(connectedClientHandler, shard);
+            return;
+        }
+        final DatagramSocket socket = shard.socket;
         logger.info("About to listen");
-        DTLSVerifier verifier = new DTLSVerifier(new BcTlsCrypto(new SecureRandom()));
+        DTLSVerifier verifier = new DTLSVerifier(credentials.getCrypto());
 
         byte[] data = new byte[MAX_MTU];
         final DatagramPacket packet = new DatagramPacket(data, data.length);
+        // HelloVerifyRequests are sent from this thread only, so one packet serves them all
+        final DatagramPacket reply = new DatagramPacket(data, 0);
 
         // Process incoming packets, replying with HelloVerifyRequest, spawn verified.
-        shouldRun = true;
         while (shouldRun) {
             socket.receive(packet);
             if (!shouldRun) {
@@ -100,7 +224,9 @@ public class DTLSListener {
                         throw new TlsFatalAlert(AlertDescription.internal_error);
                     }
 
-                    socket.send(new DatagramPacket(buf, off, len, clientAddress));
+                    reply.setData(buf, off, len);
+                    reply.setSocketAddress(clientAddress);
+                    socket.send(reply);
                 }
             });
 
@@ -116,20 +242,16 @@ public class DTLSListener {
 
                 clientSocket = newSocket;
 
+                final DatagramTransport transport = new UDPTransport(clientSocket, mtu + 2*OVERHEAD) {
+                    @Override
+                    public int getReceiveLimit() {
+                        // we do not want to limit incoming packages
+                        return MAX_MTU;
+                    }
+                };
+
                 // spawn a thread to establish session
-                final Thread handlerThread = new Thread(
-                        () -> {
-
-                            try {
-                                connect(connectedClientHandler,
-                                        clientSocket,
-                                        request);
-                            } catch (Throwable e) {
-                                logger.log(Level.WARNING, "Failed to establish DTLS session for client " + socket.getRemoteSocketAddress(), e);
-                            }
-                        },
-                        "DTLS acceptor for " + clientAddress);
-                handlerThread.start();
+                spawnAcceptor(connectedClientHandler, transport, clientAddress, request);
             } else {
               logger.info("Not accepting connection from " + clientAddress.toString());
             }
@@ -138,36 +260,199 @@ public class DTLSListener {
         logger.info("Accept loop ended gracefully");
     }
 
-    private void connect(ConnectedClientHandler connectedClientHandler, DatagramSocket socket, DTLSRequest firstPacket) throws IOException {
-        final DatagramTransport transport = new UDPTransport(socket, mtu + 2*OVERHEAD) {
+    /**
+     * The listening loop in channel mode. Datagrams from known clients are handed to their
+     * transports, others go through the DTLSVerifier.
+     */
+    private void listenOnChannel(ConnectedClientHandler connectedClientHandler, Shard shard) throws IOException {
+        final NativeDatagramEngine engine = shard.engine;
+        final DatagramChannel channel = shard.channel;
+        logger.info("About to listen on shared " + (engine != null ? "native socket" : "channel"));
+        final DTLSVerifier verifier = new DTLSVerifier(credentials.getCrypto());
+
+        // a heap buffer, as the verifier requires a byte array
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_MTU);
+        final NativeDatagramEngine.DatagramConsumer dispatcher =
+                (clientAddress, datagram) -> dispatch(connectedClientHandler, shard, verifier, clientAddress, datagram, buffer);
+
+        while (shouldRun) {
+            if (engine != null) {
+                engine.receive(dispatcher);
+            } else {
+                buffer.clear();
+                final InetSocketAddress clientAddress = (InetSocketAddress)channel.receive(buffer);
+                if (!shouldRun) {
+                    break;
+                }
+                buffer.flip();
+                dispatch(connectedClientHandler, shard, verifier, clientAddress, buffer, buffer);
+            }
+        }
+
+        logger.info("Accept loop ended gracefully");
+    }
+
+    /**
+     * Hand a datagram received in channel mode to its client's transport, or verify it as request
+     * of a new client.
+     * @param datagram the ByteBuffer containing the datagram between position and limit
+     * @param scratch a heap ByteBuffer of MAX_MTU size, to copy the datagram to for verification.
+     *        May be the same as datagram.
+     */
+    private void dispatch(ConnectedClientHandler connectedClientHandler, Shard shard, DTLSVerifier verifier,
+            InetSocketAddress clientAddress, ByteBuffer datagram, ByteBuffer scratch) throws IOException {
+        final ByteBuffer connectionId = DemuxDatagramTransport.connectionIdOf(datagram);
+        if (connectionId != null) {
+            final DemuxDatagramTransport identified = connectionIds.get(connectionId);
+            if (identified != null) {
+                identified.deliver(datagram, clientAddress);
+                return;
+            }
+        }
+        final DemuxDatagramTransport known = shard.clients.get(clientAddress);
+        if (known != null) {
+            known.deliver(datagram);
+            return;
+        }
+        logger.fine("Received UDP packet from unknown client " + clientAddress);
+        if (datagram != scratch) {
+            scratch.clear();
+            scratch.put(datagram).flip();
+        }
+
+        final DTLSRequest request = verifier.verifyRequest(clientAddress.getAddress().getAddress(),
+                scratch.array(),
+                scratch.position(),
+                scratch.remaining(),
+                new DatagramSender() {
             @Override
-            public int getReceiveLimit() {
-                // we do not want to limit incoming packages
-                return MAX_MTU;
+            public int getSendLimit() throws IOException {
+                return mtu + OVERHEAD;
             }
-        };
 
-        final IPv6DTlsServer server = new IPv6DTlsServer(heartbeat);
+            @Override
+            public void send(byte[] buf, int off, int len) throws IOException {
+                if (len > getSendLimit()) {
+                    throw new TlsFatalAlert(AlertDescription.internal_error);
+                }
+
+                shard.channelSender.send(ByteBuffer.wrap(buf, off, len), clientAddress);
+            }
+        });
+
+        if (request != null) {
+            logger.info("Accepted connection from " + clientAddress.toString());
+            final byte[] newConnectionId = newConnectionId();
+            final DemuxDatagramTransport transport = new DemuxDatagramTransport(shard.channelSender, clientAddress,
+                    mtu + 2*OVERHEAD, MAX_MTU, INBOUND_QUEUE_LENGTH, shard.clients, virtualThreads,
+                    newConnectionId, connectionIds);
+            // register before the handshake continues, so that the client's next flight is routed
+            shard.clients.put(clientAddress, transport);
+            connectionIds.put(ByteBuffer.wrap(newConnectionId), transport);
+
+            spawnAcceptor(connectedClientHandler, transport, clientAddress, request);
+        } else {
+          logger.info("Not accepting connection from " + clientAddress.toString());
+        }
+    }
+
+    /**
+     * @return a random connection ID not used by any current client
+     */
+    private byte[] newConnectionId() {
+        final byte[] id = new byte[DemuxDatagramTransport.CONNECTION_ID_LENGTH];
+        do {
+            random.nextBytes(id);
+        } while (connectionIds.containsKey(ByteBuffer.wrap(id)));
+        return id;
+    }
+
+    /**
+     * Start a thread that establishes the DTLS session and then runs the ConnectedClientHandler.
+     */
+    private void spawnAcceptor(ConnectedClientHandler connectedClientHandler, DatagramTransport transport,
+            InetSocketAddress clientAddress, DTLSRequest request) {
+        final Thread handlerThread = HandlerThreads.create(
+                () -> {
+
+                    try {
+                        connect(connectedClientHandler,
+                                transport,
+                                clientAddress,
+                                request);
+                    } catch (Throwable e) {
+                        logger.log(Level.WARNING, "Failed to establish DTLS session for client " + clientAddress, e);
+                    }
+                },
+                "DTLS acceptor for " + clientAddress,
+                virtualThreads);
+        handlerThread.start();
+    }
+
+    private void connect(ConnectedClientHandler connectedClientHandler, DatagramTransport transport,
+            InetSocketAddress clientAddress, DTLSRequest firstPacket) throws IOException {
+        final DemuxDatagramTransport demux =
+                transport instanceof DemuxDatagramTransport ? (DemuxDatagramTransport) transport : null;
+        final IPv6DTlsServer server = new IPv6DTlsServer(credentials, sessionCache,
+                demux != null ? demux.getConnectionId() : null, heartbeat);
 
         DTLSServerProtocol protocol = new DTLSServerProtocol();
 
-        final DTLSTransport dtls = protocol.accept(server, transport, firstPacket);
+        final DTLSTransport dtls;
+        try {
+            dtls = protocol.accept(server, transport, firstPacket);
+        } catch (IOException | RuntimeException e) {
+            transport.close();
+            throw e;
+        }
         
-        logger.info( "DTLS session for client " + socket.getRemoteSocketAddress() + " created.");
+        logger.info( "DTLS session for client " + clientAddress + " created.");
 
+        boolean hibernated = false;
         try {
-            connectedClientHandler.handle(server, dtls, (InetSocketAddress) socket.getRemoteSocketAddress());
+            hibernated = connectedClientHandler.handle(server, dtls, clientAddress, demux, demux);
         } finally {
-            dtls.close();
+            // whatever way the handler ended the session, the transport must not stay registered
+            if (!hibernated) {
+                dtls.close();
+            }
         }
-        logger.info ("DTLS session for client " + socket.getRemoteSocketAddress() + " terminated.");
+        logger.info ("DTLS session handler for client " + clientAddress + " returned.");
     }
 
 
+    /**
+     * @return the ServerCredentials shared by all handshakes
+     */
+    ServerCredentials getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * @return the SessionCache shared by all handshakes, or null if resumption is disabled
+     */
+    SessionCache getSessionCache() {
+        return sessionCache;
+    }
+
     public void close() {
         logger.info("Closing DTLSListener");
         shouldRun = false;
-        socket.close();
+        for (Shard shard: shards) {
+            if (shard.engine != null) {
+                shard.engine.close();
+                shard.clients.values().forEach(DemuxDatagramTransport::close);
+            } else if (shard.channel != null) {
+                try {
+                    shard.channel.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to close listening channel", e);
+                }
+                shard.clients.values().forEach(DemuxDatagramTransport::close);
+            } else {
+                shard.socket.close();
+            }
+        }
     }
 
 }
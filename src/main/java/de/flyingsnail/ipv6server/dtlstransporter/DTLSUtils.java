@@ -27,15 +27,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
-import java.math.BigInteger;
-import java.net.Inet6Address;
-import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.bouncycastle.asn1.ASN1OctetString;
 import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
 import org.bouncycastle.asn1.pkcs.RSAPrivateKey;
 import org.bouncycastle.asn1.sec.ECPrivateKey;
@@ -253,13 +252,14 @@ class DTLSUtils {
 
   /**
    * Examines the SubjectAlternateNames extensions of the supplied certificate and probes for one
-   * of type IPAdress. Reconstructs the IP address from the hexdump representation and returns
-   * the first name found to be an IPv6Adress.
-   * @param cert the TlsCertificate to read a subjectAlternativeName IPv6 address from
-   * @return null if no matching extension was found or the Inet6Adress reconstructed from cert
+   * of type IPAdress, returning the first one found to be IPv6. An IPAddress of 16 octets is a
+   * single IPv6 address, i.e. a /128 prefix. An IPAddress of 32 octets is an IPv6 address followed
+   * by a net mask (the encoding of RFC 5280, section 4.2.1.10), delegating a prefix to the client.
+   * @param cert the TlsCertificate to read a subjectAlternativeName IPv6 address or prefix from
+   * @return null if no matching extension was found or the Ipv6Prefix reconstructed from cert
    * @throws IOException on encoding errors on the ASN 1 level
    */
-  public static Inet6Address getIpv6AlternativeName(TlsCertificate cert) throws IOException {
+  public static Ipv6Prefix getIpv6Prefix(TlsCertificate cert) throws IOException {
     try {
       Extensions extensions = org.bouncycastle.asn1.x509.Certificate.getInstance(cert.getEncoded()).getTBSCertificate().getExtensions();
       if (extensions == null) {
@@ -267,15 +267,19 @@ class DTLSUtils {
           return null;
       }
       GeneralNames generalNames = GeneralNames.fromExtensions(extensions, Extension.subjectAlternativeName);
+      if (generalNames == null) {
+          logger.info("No subject alternative names presented");
+          return null;
+      }
       for (GeneralName generalName : generalNames.getNames()) {
           if (generalName.getTagNo() == GeneralName.iPAddress) {
-              InetAddress inetAddress = InetAddress.getByAddress(
-                      new BigInteger(generalName.getName().toString().substring(1), 16).toByteArray());
-              if (inetAddress instanceof Inet6Address) {
-                  logger.fine(()->"Supplied cert contains IPv6 subject alternative name: " + inetAddress);
-                  return (Inet6Address)inetAddress;
+              byte[] octets = ASN1OctetString.getInstance(generalName.getName()).getOctets();
+              if (octets.length == 16 || octets.length == 32) {
+                  Ipv6Prefix prefix = parsePrefix(octets);
+                  logger.fine(()->"Supplied cert contains IPv6 subject alternative name: " + prefix);
+                  return prefix;
               } else {
-                  logger.finer(()->"Found subject alternative name IP address, but not IPv6: " + inetAddress);
+                  logger.finer(()->"Found subject alternative name IP address, but not IPv6, length " + octets.length);
               }
           } else {
               logger.finest(()-> "Found subject alternative name which is not IP: " + generalName.getName());
@@ -287,4 +291,26 @@ class DTLSUtils {
   }
   return null;
   }
+
+  /**
+   * Parse the octets of an IPv6 IPAddress general name.
+   * @param octets 16 octets address, or 32 octets address and net mask
+   * @return the Ipv6Prefix
+   * @throws IllegalArgumentException if the net mask is not contiguous
+   */
+  static Ipv6Prefix parsePrefix(byte[] octets) throws IllegalArgumentException {
+    ByteBuffer bb = ByteBuffer.wrap(octets);
+    long high = bb.getLong(0);
+    long low = bb.getLong(8);
+    if (octets.length == 16) {
+      return new Ipv6Prefix(high, low, 128);
+    }
+    long maskHigh = bb.getLong(16);
+    long maskLow = bb.getLong(24);
+    int length = Long.numberOfLeadingZeros(~maskHigh) + (maskHigh == -1L ? Long.numberOfLeadingZeros(~maskLow) : 0);
+    if (maskHigh != Ipv6Prefix.highMask(length) || maskLow != Ipv6Prefix.lowMask(length)) {
+      throw new IllegalArgumentException("Net mask in certificate is not contiguous");
+    }
+    return new Ipv6Prefix(high, low, length);
+  }
 }
@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import org.bouncycastle.tls.AlertDescription;
+import org.bouncycastle.tls.DatagramTransport;
+import org.bouncycastle.tls.TlsFatalAlert;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * A DatagramTransport for one client, sharing an unconnected DatagramChannel or native socket
+ * with all other clients on the same port. The thread reading the channel demultiplexes datagrams
+ * by remote address and {@link #deliver(ByteBuffer) delivers} them to the client's transport, where they
+ * wait in a bounded queue for the DTLS engine to {@link #receive(byte[], int, int, int) receive}
+ * them. Sending goes directly to the shared channel.
+ * <p>
+ * While the client is idle, its handler may {@link #hibernate(Runnable) hibernate}, releasing its
+ * thread and buffers; the next datagram delivered, or closing the transport, starts a new thread
+ * to resume handling.
+ * <p>
+ * If the client negotiated the connection ID offered by this transport (RFC 9146), its records are
+ * routed by that ID rather than by address. After a NAT rebinding, the transport then
+ * {@link #confirmPeer() migrates} to the client's new address as soon as a newer record from there
+ * was authenticated.
+ */
+class DemuxDatagramTransport implements DatagramTransport, ConnectedClientHandler.Hibernation,
+    ConnectedClientHandler.PeerMigration {
+  /** The way to send datagrams on the shared channel or socket */
+  interface Sender {
+    void send(@NonNull ByteBuffer datagram, @NonNull InetSocketAddress target) throws IOException;
+  }
+
+
+  /** A datagram waiting to be received */
+  private static final class Datagram {
+    private final byte[] data;
+    /** The address the datagram came from if other than the client's current address, else null */
+    private final @Nullable InetSocketAddress source;
+    /** The epoch and sequence number of the datagram's first record if it carries a connection ID, else -1 */
+    private final long sequence;
+
+    private Datagram(byte[] data, @Nullable InetSocketAddress source, long sequence) {
+      this.data = data;
+      this.source = source;
+      this.sequence = sequence;
+    }
+  }
+
+  /** Length of the connection IDs handed out to clients */
+  static final int CONNECTION_ID_LENGTH = 8;
+
+  /** The record content type tls12_cid, RFC 9146 */
+  private static final byte CONTENT_TYPE_TLS12_CID = 25;
+  /** Offset of epoch and sequence number in a record header */
+  private static final int SEQUENCE_OFFSET = 3;
+  /** Offset of the connection ID in a tls12_cid record header, following type, version, epoch and sequence number */
+  private static final int CONNECTION_ID_OFFSET = 11;
+  /** Minimum size of a tls12_cid record carrying one of our connection IDs, including its length field */
+  private static final int MIN_CID_RECORD_LENGTH = CONNECTION_ID_OFFSET + CONNECTION_ID_LENGTH + 2;
+
+  /** Marks the end of the inbound queue after close */
+  private static final Datagram CLOSED = new Datagram(new byte[0], null, -1L);
+
+  private static final Logger logger = Logger.getLogger(DemuxDatagramTransport.class.getName());
+
+  /** Wakes up hibernated handlers when their time is up, shared by all transports */
+  private static final ScheduledThreadPoolExecutor wakeUps = createWakeUps();
+
+  private final @NonNull Sender sender;
+
+  /** The current address of the client, changed by migration */
+  private volatile @NonNull InetSocketAddress remote;
+
+  private final int sendLimit;
+
+  private final int receiveLimit;
+
+  private final ArrayBlockingQueue<Datagram> inbound;
+
+  /** The demultiplexer's map of transports, this one is removed from on close */
+  private final @NonNull ConcurrentMap<InetSocketAddress, DemuxDatagramTransport> registry;
+
+  /** The connection ID offered to the client, or null */
+  private final byte[] connectionId;
+
+  /** The demultiplexer's map of transports by connection ID, this one is removed from on close */
+  private final @Nullable ConcurrentMap<ByteBuffer, DemuxDatagramTransport> connectionIds;
+
+  /** Source and sequence of the datagram received last; only accessed by the thread handling the client */
+  private @Nullable InetSocketAddress receivedSource;
+  private long receivedSequence = -1L;
+  /** The highest sequence of a datagram confirmed as authenticated */
+  private long confirmedSequence = -1L;
+
+  private volatile boolean closed;
+
+  /** Create virtual threads to resume hibernated handlers */
+  private final boolean virtualThreads;
+
+  /** The Runnable resuming the hibernated handler, null while a handler is active */
+  private final AtomicReference<Runnable> resumer = new AtomicReference<>();
+
+  /** The scheduled wake-up of the hibernated handler, or null */
+  private volatile @Nullable ScheduledFuture<?> wakeUp;
+
+  private final AtomicLong droppedCounter = new AtomicLong();
+
+  private final AtomicLong migrationCounter = new AtomicLong();
+
+  private final AtomicLong wakeUpCounter = new AtomicLong();
+
+  /**
+   * @param sender the Sender on the shared channel
+   * @param remote the address of the client
+   * @param sendLimit the maximum size of datagrams to send
+   * @param receiveLimit the maximum size of datagrams received
+   * @param queueCapacity the maximum number of datagrams waiting to be received
+   * @param registry the demultiplexer's map of transports by remote address, to remove this
+   *        transport from on close
+   * @param virtualThreads a boolean requesting virtual threads to resume hibernated handlers
+   */
+  DemuxDatagramTransport(@NonNull Sender sender, @NonNull InetSocketAddress remote,
+      int sendLimit, int receiveLimit, int queueCapacity,
+      @NonNull ConcurrentMap<InetSocketAddress, DemuxDatagramTransport> registry, boolean virtualThreads) {
+    this(sender, remote, sendLimit, receiveLimit, queueCapacity, registry, virtualThreads, null, null);
+  }
+
+  /**
+   * @param sender the Sender on the shared channel
+   * @param remote the address of the client
+   * @param sendLimit the maximum size of datagrams to send
+   * @param receiveLimit the maximum size of datagrams received
+   * @param queueCapacity the maximum number of datagrams waiting to be received
+   * @param registry the demultiplexer's map of transports by remote address, to remove this
+   *        transport from on close
+   * @param virtualThreads a boolean requesting virtual threads to resume hibernated handlers
+   * @param connectionId the connection ID to offer to the client, of CONNECTION_ID_LENGTH bytes
+   * @param connectionIds the demultiplexer's map of transports by connection ID, to remove this
+   *        transport from on close
+   */
+  DemuxDatagramTransport(@NonNull Sender sender, @NonNull InetSocketAddress remote,
+      int sendLimit, int receiveLimit, int queueCapacity,
+      @NonNull ConcurrentMap<InetSocketAddress, DemuxDatagramTransport> registry, boolean virtualThreads,
+      byte[] connectionId, @Nullable ConcurrentMap<ByteBuffer, DemuxDatagramTransport> connectionIds) {
+    this.sender = sender;
+    this.remote = remote;
+    this.sendLimit = sendLimit;
+    this.receiveLimit = receiveLimit;
+    this.inbound = new ArrayBlockingQueue<>(queueCapacity);
+    this.registry = registry;
+    this.virtualThreads = virtualThreads;
+    this.connectionId = connectionId;
+    this.connectionIds = connectionIds;
+  }
+
+  /**
+   * Extract the connection ID from a datagram starting with a tls12_cid record.
+   * @param datagram the ByteBuffer containing the datagram between position and limit; unchanged
+   * @return a ByteBuffer containing the connection ID between position and limit, sharing the
+   *         datagram's content, or null if the datagram does not start with a tls12_cid record
+   */
+  static @Nullable ByteBuffer connectionIdOf(@NonNull ByteBuffer datagram) {
+    final int start = datagram.position();
+    if (datagram.remaining() < MIN_CID_RECORD_LENGTH || datagram.get(start) != CONTENT_TYPE_TLS12_CID) {
+      return null;
+    }
+    final ByteBuffer id = datagram.duplicate();
+    id.limit(start + CONNECTION_ID_OFFSET + CONNECTION_ID_LENGTH).position(start + CONNECTION_ID_OFFSET);
+    return id;
+  }
+
+  /**
+   * @return epoch and sequence number of the tls12_cid record the datagram starts with, or -1
+   */
+  private static long sequenceOf(@NonNull ByteBuffer datagram) {
+    final int start = datagram.position();
+    if (datagram.remaining() < MIN_CID_RECORD_LENGTH || datagram.get(start) != CONTENT_TYPE_TLS12_CID) {
+      return -1L;
+    }
+    return datagram.getLong(start + SEQUENCE_OFFSET);
+  }
+
+  /**
+   * Hand a datagram read from the shared channel to this transport. Called by the demultiplexing
+   * thread; never blocks. The datagram is dropped if the queue is full.
+   * @param datagram the ByteBuffer containing the datagram between position and limit. It is
+   *        copied, so the caller may re-use the buffer.
+   * @return a boolean indicating if the datagram was queued
+   */
+  boolean deliver(@NonNull ByteBuffer datagram) {
+    return deliver(datagram, null);
+  }
+
+  /**
+   * Hand a datagram routed by connection ID to this transport, like {@link #deliver(ByteBuffer)}.
+   * @param datagram the ByteBuffer containing the datagram between position and limit
+   * @param source the address the datagram came from, or null if it is the client's current address
+   * @return a boolean indicating if the datagram was queued
+   */
+  boolean deliver(@NonNull ByteBuffer datagram, @Nullable InetSocketAddress source) {
+    if (closed) {
+      return false;
+    }
+    final long sequence = sequenceOf(datagram);
+    final byte[] copy = new byte[datagram.remaining()];
+    datagram.get(copy);
+    if (!inbound.offer(new Datagram(copy, source == null || source.equals(remote) ? null : source, sequence))) {
+      droppedCounter.incrementAndGet();
+      return false;
+    }
+    resume();
+    return true;
+  }
+
+  private static ScheduledThreadPoolExecutor createWakeUps() {
+    final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+      final Thread thread = new Thread(runnable, "DTLS hibernation wake-ups");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // most wake-ups are cancelled by the client sending again, they should not pile up
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  /**
+   * Release the handler's thread until the next datagram arrives, the transport is closed, or
+   * wakeMillis have passed.
+   */
+  @Override
+  public boolean hibernate(Runnable resume, long wakeMillis) {
+    resumer.set(resume);
+    // a datagram delivered before the resumer was visible would not wake anybody
+    if ((!inbound.isEmpty() || closed) && resumer.compareAndSet(resume, null)) {
+      return false;
+    }
+    if (wakeMillis > 0) {
+      wakeUp = wakeUps.schedule(() -> wake(resume), wakeMillis, TimeUnit.MILLISECONDS);
+    }
+    return true;
+  }
+
+  /**
+   * Start a thread running the hibernated handler, if any, because a datagram arrived or the
+   * transport was closed.
+   */
+  private void resume() {
+    final Runnable resume = resumer.getAndSet(null);
+    if (resume != null) {
+      final ScheduledFuture<?> pending = wakeUp;
+      if (pending != null) {
+        pending.cancel(false);
+      }
+      startHandler(resume);
+    }
+  }
+
+  /**
+   * Start a thread running the hibernated handler because its time is up, unless it was resumed
+   * already.
+   */
+  private void wake(Runnable resume) {
+    if (resumer.compareAndSet(resume, null)) {
+      wakeUpCounter.incrementAndGet();
+      startHandler(resume);
+    }
+  }
+
+  private void startHandler(Runnable resume) {
+    HandlerThreads.create(resume, "DTLS handler for " + remote, virtualThreads).start();
+  }
+
+  @Override
+  public int getReceiveLimit() {
+    return receiveLimit;
+  }
+
+  @Override
+  public int getSendLimit() {
+    return sendLimit;
+  }
+
+  /**
+   * Receive the next datagram delivered to this transport.
+   * @return the number of bytes received, or -1 if none arrived within waitMillis
+   * @throws SocketException if the transport is closed
+   */
+  @Override
+  public int receive(byte[] buf, int off, int len, int waitMillis) throws IOException {
+    if (closed) {
+      throw new SocketException("Transport closed");
+    }
+    final Datagram datagram;
+    try {
+      datagram = inbound.poll(waitMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SocketException("Interrupted while receiving");
+    }
+    if (datagram == null) {
+      return -1;
+    }
+    if (datagram == CLOSED) {
+      throw new SocketException("Transport closed");
+    }
+    receivedSource = datagram.source;
+    receivedSequence = datagram.sequence;
+    final int length = Math.min(len, datagram.data.length);
+    System.arraycopy(datagram.data, 0, buf, off, length);
+    return length;
+  }
+
+  /**
+   * Confirm that the datagram received last was authenticated. If it came from another address
+   * and is newer than all datagrams confirmed before, the client has moved, and replies go to its
+   * new address from now on.
+   */
+  @Override
+  public void confirmPeer() {
+    final long sequence = receivedSequence;
+    if (sequence <= confirmedSequence) {
+      // not carrying a connection ID, or an older datagram delayed in the network
+      return;
+    }
+    confirmedSequence = sequence;
+    final InetSocketAddress source = receivedSource;
+    if (source != null) {
+      receivedSource = null;
+      migrate(source);
+    }
+  }
+
+  /**
+   * Move this transport to the client's new address.
+   */
+  private synchronized void migrate(@NonNull InetSocketAddress source) {
+    if (closed) {
+      return;
+    }
+    final InetSocketAddress previous = remote;
+    remote = source;
+    registry.remove(previous, this);
+    // a stale transport registered for the new address stays reachable by its own connection ID
+    registry.put(source, this);
+    migrationCounter.incrementAndGet();
+    logger.info(() -> "Client migrated from " + previous + " to " + source);
+  }
+
+  @Override
+  public void send(byte[] buf, int off, int len) throws IOException {
+    if (len > sendLimit) {
+      throw new TlsFatalAlert(AlertDescription.internal_error);
+    }
+    if (closed) {
+      throw new SocketException("Transport closed");
+    }
+    sender.send(ByteBuffer.wrap(buf, off, len), remote);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (!closed) {
+      closed = true;
+      inbound.clear();
+      inbound.offer(CLOSED);
+      registry.remove(remote, this);
+      if (connectionIds != null && connectionId != null) {
+        connectionIds.remove(ByteBuffer.wrap(connectionId), this);
+      }
+      // let a hibernated handler learn about the close and clean up
+      resume();
+    }
+  }
+
+  /**
+   * @return the address of the client
+   */
+  @NonNull InetSocketAddress getRemote() {
+    return remote;
+  }
+
+  /**
+   * @return the connection ID offered to the client, or null
+   */
+  byte[] getConnectionId() {
+    return connectionId;
+  }
+
+  /**
+   * @return the number of times the client moved to a new address
+   */
+  long getMigrationCount() {
+    return migrationCounter.get();
+  }
+
+  /**
+   * @return the number of times a hibernated handler was woken up without a datagram arriving
+   */
+  long getWakeUpCount() {
+    return wakeUpCounter.get();
+  }
+
+  /**
+   * @return the number of datagrams dropped because the queue was full
+   */
+  long getDroppedCount() {
+    return droppedCounter.get();
+  }
+
+  @Override
+  public String toString() {
+    return "DemuxDatagramTransport for " + remote;
+  }
+}
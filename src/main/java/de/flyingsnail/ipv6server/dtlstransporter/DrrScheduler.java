@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Deficit round robin scheduling of the sessions' OutboundQueues onto the DTLS sender threads.
+ * <p>
+ * Queues with waiting packets are kept in a FIFO active list. A sender thread takes the queue at
+ * the head, lets it send packets worth up to its deficit (increased by one quantum per round),
+ * and appends it to the tail again if packets are left. So when the senders are saturated, each
+ * tunnel gets the same share of bytes encrypted and sent, regardless of packet sizes and of
+ * how many packets it has waiting. Each queue is served by at most one thread at a time, which
+ * keeps a tunnel's packets in order.
+ */
+class DrrScheduler {
+  private final Logger logger = Logger.getLogger(DrrScheduler.class.getName());
+
+  /** The queues that have packets waiting, each contained at most once */
+  private final LinkedBlockingQueue<OutboundQueue> activeList = new LinkedBlockingQueue<>();
+
+  /** Bytes added to a queue's deficit per round */
+  private final int quantum;
+
+  /**
+   * @param quantum the number of bytes a queue may send per round; should be at least the MTU
+   */
+  DrrScheduler(int quantum) {
+    if (quantum <= 0) {
+      throw new IllegalArgumentException("DRR quantum must be positive");
+    }
+    this.quantum = quantum;
+  }
+
+  /**
+   * Start the sender threads.
+   * @param threadCount the number of sender threads
+   */
+  void start(int threadCount) {
+    for (int i = 0; i < threadCount; i++) {
+      Thread sender = new Thread(this::serve, "DTLS sender #" + i);
+      sender.setDaemon(true);
+      sender.start();
+    }
+    logger.info(() -> "Started " + threadCount + " DTLS sender threads, quantum " + quantum);
+  }
+
+  /**
+   * Append a queue that got packets to the active list. Must only be called by the queue itself,
+   * while it is not in the list already.
+   * @param queue the OutboundQueue to activate
+   */
+  void activate(@NonNull OutboundQueue queue) {
+    activeList.add(queue);
+  }
+
+  /**
+   * Loop of a sender thread.
+   */
+  private void serve() {
+    while (true) {
+      try {
+        serveNext();
+      } catch (InterruptedException e) {
+        logger.info("DTLS sender thread interrupted, terminating");
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Take the queue at the head of the active list, waiting for one if necessary, serve it for one
+   * round and append it to the tail again if packets are left.
+   * @throws InterruptedException if interrupted while waiting for an active queue
+   */
+  void serveNext() throws InterruptedException {
+    final OutboundQueue queue = activeList.take();
+    try {
+      if (queue.serve(quantum)) {
+        activeList.add(queue);
+      }
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "Uncaught error serving outbound queue", e);
+    }
+  }
+
+  /**
+   * @return the number of queues waiting for a sender thread
+   */
+  int getActiveCount() {
+    return activeList.size();
+  }
+
+  /**
+   * @return the quantum in bytes
+   */
+  int getQuantum() {
+    return quantum;
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Reads length prefixed frames, as written by {@link FramedPipeWriter}, from a pipe. Reads are
+ * done in large chunks, each usually containing many frames; frames split across reads are
+ * reassembled.
+ */
+class FramedPipeReader {
+  /** Largest acceptable frame: an IPv6 header plus the maximum payload length */
+  static final int MAX_FRAME_LENGTH = IPv6InputHandler.IPV6PACKET_HEADER_LENGTH + 0xffff;
+
+  private final @NonNull ReadableByteChannel pipe;
+
+  /** Read buffer; between reads, it holds an incomplete frame in read mode */
+  private final ByteBuffer buffer;
+
+  /**
+   * @param pipe the ReadableByteChannel of the pipe
+   * @param bufferSize the size of reads; at least MAX_FRAME_LENGTH plus the frame header
+   */
+  FramedPipeReader(@NonNull ReadableByteChannel pipe, int bufferSize) {
+    this.pipe = pipe;
+    this.buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, MAX_FRAME_LENGTH + FramedPipeWriter.FRAME_HEADER_LENGTH));
+    this.buffer.flip();
+  }
+
+  /**
+   * Read from the pipe and pass each complete packet to the BufferWriter. Blocks until at least
+   * one read returned.
+   * @param out the BufferWriter to pass packets to. It receives a buffer containing exactly one
+   *        packet between position and limit, which is only valid during the call.
+   * @return the number of packets passed
+   * @throws IOException if the pipe signals EOF or the framing is corrupt
+   */
+  int readPackets(@NonNull BufferWriter out) throws IOException {
+    buffer.compact();
+    final int bytesRead = pipe.read(buffer);
+    buffer.flip();
+    if (bytesRead < 0) {
+      throw new IOException("EOF on framed pipe");
+    }
+    int packets = 0;
+    final int limit = buffer.limit();
+    while (buffer.remaining() >= FramedPipeWriter.FRAME_HEADER_LENGTH) {
+      final int start = buffer.position();
+      final int length = buffer.getInt(start);
+      if (length < IPv6InputHandler.IPV6PACKET_HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+        throw new IOException("Corrupt framing on pipe, frame length " + length);
+      }
+      final int end = start + FramedPipeWriter.FRAME_HEADER_LENGTH + length;
+      if (end > limit) {
+        // incomplete frame, wait for the next read
+        break;
+      }
+      buffer.position(start + FramedPipeWriter.FRAME_HEADER_LENGTH).limit(end);
+      try {
+        out.write(buffer);
+      } finally {
+        buffer.limit(limit).position(end);
+      }
+      packets++;
+    }
+    return packets;
+  }
+}
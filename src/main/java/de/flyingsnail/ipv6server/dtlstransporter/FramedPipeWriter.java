@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * A WritableByteChannel writing packets to a pipe in length prefixed frames: each packet is
+ * preceded by its length as 4 byte big endian integer, so that the reader can restore packet
+ * boundaries regardless of how the pipe merges or splits writes.
+ * <p>
+ * Writers never block on the pipe: {@link #write(ByteBuffer)} appends the frame to a staging
+ * buffer, and a separate thread ({@link #run()}) writes all staged frames with a single system
+ * call. While it is writing, new frames accumulate in a second staging buffer, so the batch size
+ * adapts to the load without adding latency. If the staging buffer is full, the packet is dropped
+ * and counted.
+ */
+class FramedPipeWriter implements WritableByteChannel, Runnable {
+  /** Length of the frame header */
+  static final int FRAME_HEADER_LENGTH = 4;
+
+  private final Logger logger = Logger.getLogger(FramedPipeWriter.class.getName());
+
+  private final @NonNull WritableByteChannel pipe;
+
+  /** The staging buffer receiving new frames; guarded by this */
+  private ByteBuffer filling;
+
+  /** The buffer being written to the pipe by the writer thread */
+  private ByteBuffer draining;
+
+  private volatile boolean open = true;
+
+  private final AtomicLong packetCounter = new AtomicLong();
+  private final AtomicLong batchCounter = new AtomicLong();
+  private final AtomicLong droppedCounter = new AtomicLong();
+
+  /**
+   * @param pipe the WritableByteChannel of the pipe
+   * @param stagingSize the capacity of each of the two staging buffers in bytes
+   */
+  FramedPipeWriter(@NonNull WritableByteChannel pipe, int stagingSize) {
+    this.pipe = pipe;
+    this.filling = ByteBuffer.allocateDirect(stagingSize);
+    this.draining = ByteBuffer.allocateDirect(stagingSize);
+  }
+
+  /**
+   * Stage one packet for writing. The packet is copied, so the caller may re-use the buffer
+   * immediately.
+   * @param src a ByteBuffer containing exactly one packet between position and limit
+   * @return the number of bytes consumed from src, which is all of them even if the packet was dropped
+   */
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    final int length = src.remaining();
+    synchronized (this) {
+      if (filling.remaining() < FRAME_HEADER_LENGTH + length) {
+        droppedCounter.incrementAndGet();
+      } else {
+        final boolean wasEmpty = filling.position() == 0;
+        filling.putInt(length);
+        filling.put(src);
+        packetCounter.incrementAndGet();
+        if (wasEmpty) {
+          notifyAll();
+        }
+      }
+    }
+    src.position(src.limit());
+    return length;
+  }
+
+  /**
+   * The writer thread: wait for staged frames and write them in one go.
+   */
+  @Override
+  public void run() {
+    logger.info("Framed pipe writer started");
+    try {
+      while (open) {
+        synchronized (this) {
+          while (filling.position() == 0 && open) {
+            wait();
+          }
+          ByteBuffer staged = filling;
+          filling = draining;
+          draining = staged;
+        }
+        draining.flip();
+        while (draining.hasRemaining()) {
+          pipe.write(draining);
+        }
+        draining.clear();
+        batchCounter.incrementAndGet();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Pipe to ayiya transporter broken", e);
+    } finally {
+      open = false;
+      logger.info("Framed pipe writer stopped");
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      open = false;
+      notifyAll();
+    }
+    pipe.close();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("framed pipe: packets %d, batches %d, dropped %d",
+        packetCounter.get(), batchCounter.get(), droppedCounter.get());
+  }
+}
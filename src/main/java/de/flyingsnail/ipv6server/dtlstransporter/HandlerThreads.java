@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Creates the threads that run DTLS handshakes and client handlers, either as platform threads or
+ * as virtual threads. An idle tunnel's handler mostly waits in DTLSTransport.receive, so on a
+ * virtual thread it costs a small heap allocated stack instead of a reserved platform stack.
+ * <p>
+ * The build targets Java 11, so virtual threads are created by reflection on the Thread.Builder
+ * API and are only available when running on Java 21 or later.
+ */
+final class HandlerThreads {
+  private static final Logger logger = Logger.getLogger(HandlerThreads.class.getName());
+
+  /** Thread.ofVirtual(), or null if not available */
+  private static final Method OF_VIRTUAL;
+  /** Thread.Builder.name(String) */
+  private static final Method NAME;
+  /** Thread.Builder.unstarted(Runnable) */
+  private static final Method UNSTARTED;
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method unstarted = null;
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      name = builder.getMethod("name", String.class);
+      unstarted = builder.getMethod("unstarted", Runnable.class);
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      // fails on Java 19 and 20 without preview features enabled
+      unstarted.invoke(ofVirtual.invoke(null), (Runnable) () -> {});
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.log(Level.FINE, "Virtual threads are not available", e);
+      ofVirtual = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    UNSTARTED = unstarted;
+  }
+
+  private HandlerThreads() {
+  }
+
+  /**
+   * @return a boolean indicating if the running JVM supports virtual threads
+   */
+  static boolean isVirtualSupported() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Create a new, unstarted thread.
+   * @param task the Runnable to run
+   * @param name the name of the thread
+   * @param virtual a boolean requesting a virtual thread. Platform threads are created if virtual
+   *        threads are not supported.
+   * @return the Thread
+   */
+  static @NonNull Thread create(@NonNull Runnable task, @NonNull String name, boolean virtual) {
+    if (virtual && OF_VIRTUAL != null) {
+      try {
+        Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+        return (Thread) UNSTARTED.invoke(builder, task);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        logger.log(Level.WARNING, "Failed to create virtual thread, falling back to platform thread", e);
+      }
+    }
+    return new Thread(task, name);
+  }
+}
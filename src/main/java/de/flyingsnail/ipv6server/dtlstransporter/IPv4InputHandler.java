@@ -20,8 +20,6 @@
 package de.flyingsnail.ipv6server.dtlstransporter;
 
 import java.io.IOException;
-import java.net.Inet6Address;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
@@ -29,13 +27,17 @@ import java.rmi.NoSuchObjectException;
 import java.util.Date;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.bouncycastle.tls.DTLSTransport;
 import org.bouncycastle.tls.TlsTimeoutException;
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 
+import de.flyingsnail.ipv6server.dtlstransporter.ConnectedClientHandler.Hibernation;
+import de.flyingsnail.ipv6server.dtlstransporter.ConnectedClientHandler.PeerMigration;
 import de.flyingsnail.ipv6server.dtlstransporter.DTLSData.ServerTransportTupel;
 
 
@@ -47,13 +49,25 @@ import de.flyingsnail.ipv6server.dtlstransporter.DTLSData.ServerTransportTupel;
  */
 public class IPv4InputHandler implements Runnable, ConnectedClientHandler {
   private final long maxExpiryCheckDelay;
+  /** Heap buffers that client handlers receive decrypted packets into */
+  private final @NonNull BufferPool receiveBufferPool;
+  /** Idle time after which a client's handler hibernates, 0 to never hibernate */
+  private final long hibernateIdleMillis;
+  /** The DTLS heartbeat interval, at which hibernated handlers wake up to run the heartbeat */
+  private final long heartbeatMillis;
+  /**
+   * Time a woken up handler receives before hibernating again. Must exceed the heartbeat's
+   * response timeout (1 s, see IPv6DTlsServer), so that an unresponsive client is detected.
+   */
+  private static final int HEARTBEAT_PROBE_MILLIS = 3000;
   private @NonNull DTLSData dtlsData;
   private @NonNull DTLSListener dtlsServer;
   private Logger logger = Logger.getLogger(getClass().getName());
   private @NonNull BufferWriter ipv6out;
-  private Date lastPacketReceivedTime;
+  private final @NonNull UpstreamValidator validator;
+  /** System.nanoTime() of the last packet received from any client */
+  private volatile long lastPacketReceivedTime;
   private boolean validPacketReceived;
-  private int invalidPacketCounter;
   private Timer timer;
 
   /**
@@ -62,12 +76,26 @@ public class IPv4InputHandler implements Runnable, ConnectedClientHandler {
    *                 DTLS session.
    * @param dtlsServer the DTLS equivalent of a ServerSocket, accepting new connections
    * @param ipv6out the BufferWriter to write IPv6 packets to
+   * @param validator the UpstreamValidator checking and counting packets received from clients
+   * @param receiveBufferPool the BufferPool of heap buffers to receive decrypted packets into
+   * @param hibernateIdleMillis the idle time in milliseconds after which a client's handler
+   *        releases its thread, if the transport supports it; 0 to never hibernate
+   * @param heartbeatMillis the DTLS heartbeat interval in milliseconds; hibernated handlers wake
+   *        up at this interval, so that clients that silently disappeared are detected
    */
   public IPv4InputHandler(@NonNull DTLSData dtlsData, 
       @NonNull DTLSListener dtlsServer, 
       @NonNull BufferWriter ipv6out,
-      long maxExpiryCheckDelay) {
+      long maxExpiryCheckDelay,
+      @NonNull UpstreamValidator validator,
+      @NonNull BufferPool receiveBufferPool,
+      long hibernateIdleMillis,
+      long heartbeatMillis) {
     this.dtlsData = dtlsData;
+    this.validator = validator;
+    this.receiveBufferPool = receiveBufferPool;
+    this.hibernateIdleMillis = hibernateIdleMillis;
+    this.heartbeatMillis = heartbeatMillis;
     this.ipv6out = ipv6out;
     this.dtlsServer = dtlsServer;
     this.maxExpiryCheckDelay = maxExpiryCheckDelay;
@@ -154,43 +182,26 @@ public class IPv4InputHandler implements Runnable, ConnectedClientHandler {
 
   /**
    * Write next packet from the tunnel to the IPv6 device.
-   * @param clientAddress an Inet6Address giving the client's address according to its certificate. This is the only allowed source address.
+   * @param clientPrefix an Ipv6Prefix giving the client's prefix according to its certificate. Source addresses must be within it.
    * @param bb a ByteBuffer containing a read packet (fixed IPv6 header plus payload), with current position set to 
    *        beginning of header, and limit set to end of payload.
-   * @return a boolean indicating if the packet was correctly signed
+   * @return a boolean indicating if the packet was valid and written. Invalid packets are not flagged by Exception,
+   *        but counted by the UpstreamValidator.
    * @throws IOException in case of network problems (probably temporary in nature)
-   * @throws IllegalArgumentException in case that the supplied ByteBuffer is trivially invalid. Packets failing to verify
-   *    signature are not flagged by Exception, but instead by returning false and increased invalidPacketCounter.
    */
-  public boolean writeToIPv6(Inet6Address clientAddress, ByteBuffer bb) throws IOException, IllegalArgumentException {
+  public boolean writeToIPv6(Ipv6Prefix clientPrefix, ByteBuffer bb) throws IOException {
     if (ipv6out == null)
       throw new IllegalStateException("write() called on unconnected handler");
 
     // update timestamp of last packet received
-    lastPacketReceivedTime = new Date();
+    lastPacketReceivedTime = System.nanoTime();
 
-    // check buffer content
-    try {
-      int contentLength = (int)ipv6out.verifyHeaderReturnPacketLength(bb);
-      
-      if (contentLength + IPv6InputHandler.IPV6PACKET_HEADER_LENGTH != bb.remaining()) {
-        throw new IOException("Retrieved data do not represent a single IPv6 package");
+    // check header and source address in place, without allocating
+    final UpstreamValidator.DropReason reason = validator.validate(clientPrefix, bb);
+    if (reason != null) {
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, "Dropped package from client {0}: {1}", new Object[] {clientPrefix, reason});
       }
-    } catch (IOException e) {
-      logger.log(Level.INFO, "Received non-/not single IPv6 package", e);
-      invalidPacketCounter++;
-      return false;
-    }
-    
-    // check source IP address
-    byte[] rawIpAddress = new byte[16];
-    System.arraycopy(bb.array(), bb.position() + IPv6InputHandler.IPV6PACKET_SOURCE_OFFSET + bb.arrayOffset(),
-        rawIpAddress, 0, rawIpAddress.length);
-    // TODO in java 16, replace by bb.get(bb.position() + IPv6InputHandler.IPV6PACKET_SOURCE_OFFSET, rawIpAddress);
-    InetAddress sourceIp = Inet6Address.getByAddress(rawIpAddress);
-    if (!clientAddress.equals(sourceIp)) {
-      logger.log(Level.WARNING, "Received IPv6 package from Client {0} with source IP {1}", new Object[] {clientAddress, sourceIp});
-      invalidPacketCounter++;
       return false;
     }
     validPacketReceived = true;
@@ -200,28 +211,79 @@ public class IPv4InputHandler implements Runnable, ConnectedClientHandler {
   }
 
   @Override
-  public void handle(IPv6DTlsServer dtlsServer, DTLSTransport dtlsTransport, InetSocketAddress client) {
-    Inet6Address clientAddress = null;
+  public boolean handle(IPv6DTlsServer dtlsServer, DTLSTransport dtlsTransport, InetSocketAddress client,
+      @Nullable Hibernation hibernation, @Nullable PeerMigration migration) {
+    Ipv6Prefix clientPrefix = null;
     try {
-      clientAddress = DTLSUtils.getIpv6AlternativeName(dtlsServer.getClientCert());
+      clientPrefix = DTLSUtils.getIpv6Prefix(dtlsServer.getClientCert());
     } catch (IOException e) {
       logger.log(Level.WARNING, "Received package from authenticated client, not carrying an IPv6Address in its client cert", e);
-      return;
+      return false;
+    }
+    if (clientPrefix == null) {
+      logger.log(Level.WARNING, "Authenticated client {0} has no IPv6 address or prefix in its client cert", client.getHostString());
+      return false;
     }
+    return serve(dtlsServer, dtlsTransport, client, clientPrefix, null, System.nanoTime(), hibernation, migration);
+  }
+
+  /**
+   * Register the session if not done yet, then receive and forward the client's packets until
+   * the session ends, or until the client is idle long enough to hibernate.
+   * <p>
+   * A hibernated handler is resumed when the client sends, or after the heartbeat interval. In
+   * the latter case it receives only briefly, which lets the DTLS engine send a heartbeat
+   * request and wait for the response, and then hibernates again. A client that does not
+   * respond makes receive fail, which ends the session.
+   * @param session the ServerTransportTupel when resuming a hibernated session, or null for a new session
+   * @param lastReceived the System.nanoTime() of the last packet from the client, or of the session start
+   * @return true if the handler hibernated, false if the session ended and the transport is closed
+   */
+  private boolean serve(IPv6DTlsServer dtlsServer, DTLSTransport dtlsTransport, InetSocketAddress client,
+      Ipv6Prefix clientPrefix, @Nullable ServerTransportTupel session, long lastReceived,
+      @Nullable Hibernation hibernation, @Nullable PeerMigration migration) {
+    boolean hibernated = false;
+    ByteBuffer bb = null;
     try {
-      closePreviousSession(clientAddress);
+      if (session == null) {
+        closePreviousSession(clientPrefix);
 
-      // register the DTLSTransport event for the address. After this, traffic to this IPv6 address will be routed to the dtlsTransport
-      dtlsData.putServerAndTransport(clientAddress, dtlsServer, dtlsTransport);
+        // register the DTLSTransport event for the prefix. After this, traffic to this IPv6 prefix will be routed to the dtlsTransport
+        session = dtlsData.putServerAndTransport(clientPrefix, dtlsServer, dtlsTransport);
+        logger.info("Handling client " + client.getHostString());
+      } else {
+        logger.fine(() -> "Resuming hibernated client " + client.getHostString());
+      }
 
-      ByteBuffer bb = ByteBuffer.allocate(dtlsTransport.getReceiveLimit());
-      logger.info("Handling client " + client.getHostString());
+      final TokenBucket upstreamLimit = session.getUpstreamLimit();
+      final int receiveLimit = dtlsTransport.getReceiveLimit();
+      bb = receiveLimit <= receiveBufferPool.getBufferSize() ? receiveBufferPool.acquire() : null;
+      if (bb == null) {
+        bb = ByteBuffer.allocate(receiveLimit);
+      }
 
       while (true) {
         bb.clear();
-        int bytesRead = dtlsTransport.receive(bb.array(), bb.arrayOffset() + bb.position(), bb.limit() - bb.position(), 60 * 1000);
+        final boolean idle = hibernation != null && hibernateIdleMillis > 0
+            && System.nanoTime() - lastReceived >= TimeUnit.MILLISECONDS.toNanos(hibernateIdleMillis);
+        // an idle client only gets the time for a heartbeat before the handler hibernates again
+        int bytesRead = dtlsTransport.receive(bb.array(), bb.arrayOffset() + bb.position(), bb.limit() - bb.position(),
+            idle ? HEARTBEAT_PROBE_MILLIS : 60 * 1000);
         if (bytesRead <= 0) {
           logger.finer(() -> "read no valid bytes within timeout " + client.getHostString());
+          if (idle) {
+            // release thread and buffer until the client sends again, or the next heartbeat is due
+            final ServerTransportTupel registered = session;
+            final long idleSince = lastReceived;
+            if (hibernation.hibernate(
+                () -> serve(dtlsServer, dtlsTransport, client, clientPrefix, registered, idleSince, hibernation, migration),
+                heartbeatMillis)) {
+              hibernated = true;
+              logger.fine(() -> "Hibernated idle client " + client.getHostString());
+              return true;
+            }
+            continue;
+          }
           try {
             Thread.sleep(100L);
           } catch (InterruptedException e) {
@@ -230,39 +292,57 @@ public class IPv4InputHandler implements Runnable, ConnectedClientHandler {
           }
           continue;
         }
+        lastReceived = System.nanoTime();
+        if (migration != null) {
+          // the record was authenticated, so the client may have moved to where it came from
+          migration.confirmPeer();
+        }
         bb.limit(bytesRead);
+        if (upstreamLimit != null && !upstreamLimit.tryConsume(bytesRead)) {
+          validator.countDrop(UpstreamValidator.DropReason.RATE_LIMITED);
+          continue;
+        }
         logger.finest("Writing package");
-        writeToIPv6(clientAddress, bb);
+        writeToIPv6(clientPrefix, bb);
       }
     } catch (TlsTimeoutException e) {
-      logger.log(Level.INFO, "Client {0}/{1} had timeout", new Object[] {client.getHostString(), clientAddress});
+      logger.log(Level.INFO, "Client {0}/{1} had timeout", new Object[] {client.getHostString(), clientPrefix});
     } catch (SocketException e) {
       logger.log(Level.INFO, e, () -> "Asynchronous close of onnection for client " + client.getHostString());
     } catch (IOException e) {
       logger.log(Level.WARNING, e, () -> "Connection lost with client " + client.getHostString());
     } finally {
-      logger.log(Level.INFO, "Client {0}/{1} is gone", new Object[] {client.getHostString(), clientAddress});
-      try {
-        dtlsTransport.close();
-      } catch (Exception e) {
-        logger.log(Level.WARNING, "Could not close dtls session cleanly", e);
+      if (bb != null) {
+        receiveBufferPool.release(bb);
+      }
+      if (!hibernated) {
+        logger.log(Level.INFO, "Client {0}/{1} is gone", new Object[] {client.getHostString(), clientPrefix});
+        try {
+          dtlsTransport.close();
+        } catch (Exception e) {
+          logger.log(Level.WARNING, "Could not close dtls session cleanly", e);
+        }
+        // a reconnect of the same client might already have replaced our registration
+        if (session != null) {
+          dtlsData.removeServerTransport(session);
+        }
       }
-      dtlsData.removeServerTransport(clientAddress);
     }
+    return false;
   }
 
   /**
-   * Check for an existing DTLSTransport associated with the IPv6 address. This means, our client changed its IPv4 address
-   * @param testAddress
+   * Check for an existing DTLSTransport associated with the IPv6 prefix. This means, our client changed its IPv4 address
+   * @param testPrefix
    * @throws IOException
    */
-  private void closePreviousSession(Inet6Address testAddress) throws IOException {
+  private void closePreviousSession(Ipv6Prefix testPrefix) throws IOException {
     try {
-      ServerTransportTupel previousSession = dtlsData.getServerTransport(testAddress);
+      ServerTransportTupel previousSession = dtlsData.getServerTransport(testPrefix);
       if (previousSession != null) {
         previousSession.getTransport().close(); // the still running handler will learn it the hard way :-)
-        dtlsData.removeServerTransport(testAddress);
-        logger.log(Level.INFO, () -> "Closed previous session for " + testAddress);
+        dtlsData.removeServerTransport(previousSession);
+        logger.log(Level.INFO, () -> "Closed previous session for " + testPrefix);
       }
     } catch (NoSuchObjectException e) {
       // no previous instance, fine!
@@ -270,17 +350,17 @@ public class IPv4InputHandler implements Runnable, ConnectedClientHandler {
   }
 
   /**
-   * @return the lastPacketReceivedTime
+   * @return the time of the last packet received, in {@link System#nanoTime()}
    */
-  public Date getLastPacketReceivedTime() {
+  public long getLastPacketReceivedTime() {
     return lastPacketReceivedTime;
   }
 
   /**
-   * @return the invalidPacketCounter
+   * @return the number of packets dropped by the UpstreamValidator
    */
-  public int getInvalidPacketCounter() {
-    return invalidPacketCounter;
+  public long getInvalidPacketCounter() {
+    return validator.getDropCount();
   }
 
   /**
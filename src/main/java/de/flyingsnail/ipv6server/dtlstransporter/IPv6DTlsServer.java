@@ -22,15 +22,12 @@
 package de.flyingsnail.ipv6server.dtlstransporter;
 
 import java.io.IOException;
-import java.security.SecureRandom;
-import java.util.Base64;
 import java.util.Date;
 import java.util.Vector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.bouncycastle.asn1.x500.X500Name;
-import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
 import org.bouncycastle.tls.AlertDescription;
 import org.bouncycastle.tls.AlertLevel;
 import org.bouncycastle.tls.Certificate;
@@ -40,34 +37,38 @@ import org.bouncycastle.tls.DefaultTlsHeartbeat;
 import org.bouncycastle.tls.DefaultTlsServer;
 import org.bouncycastle.tls.HeartbeatMode;
 import org.bouncycastle.tls.ProtocolVersion;
+import org.bouncycastle.tls.SessionParameters;
 import org.bouncycastle.tls.SignatureAlgorithm;
 import org.bouncycastle.tls.SignatureAndHashAlgorithm;
 import org.bouncycastle.tls.TlsCredentialedDecryptor;
 import org.bouncycastle.tls.TlsCredentialedSigner;
 import org.bouncycastle.tls.TlsFatalAlert;
 import org.bouncycastle.tls.TlsHeartbeat;
+import org.bouncycastle.tls.TlsSession;
 import org.bouncycastle.tls.TlsUtils;
 import org.bouncycastle.tls.crypto.TlsCertificate;
-import org.bouncycastle.tls.crypto.impl.bc.BcTlsCrypto;
+import org.eclipse.jdt.annotation.Nullable;
 
 /**
  * A TlsServer as defined by the Bouncy Castle low level TLS API, sub-class-tuned to serve
  * for the IPv6Transport DTLS implementation. The good news is that it is not strictly necessary
  * to have any contact to the subscriber database, it only needs to check for a valid certificate
  * issued by its certification authority.
- * TODO having said that, adding CRL check should be implemented some day.
+ * Revocation is checked against CRLs, see {@link ChainChecker}.
+ * Returning clients may resume their session from the {@link SessionCache} in an abbreviated handshake.
+ * Clients supporting DTLS connection IDs are offered one, if the listener routes by connection ID.
  */
 class IPv6DTlsServer extends DefaultTlsServer {
 
-  private Logger logger = Logger.getLogger(IPv6DTlsServer.class.getName());
+  private static final Logger logger = Logger.getLogger(IPv6DTlsServer.class.getName());
   
-  private ChainChecker chainChecker;
+  private final ServerCredentials credentials;
 
-  private Certificate serverCertChain;
+  /** The sessions that clients may resume, or null if resumption is disabled */
+  private final @Nullable SessionCache sessionCache;
 
-  private TlsCertificate trustedCA;
-  
-  private AsymmetricKeyParameter privateKey;
+  /** The connection ID to offer to the client, or null if its records are routed by address */
+  private final byte[] connectionId;
 
   private int heartbeat;
 
@@ -83,51 +84,19 @@ class IPv6DTlsServer extends DefaultTlsServer {
     return expiryDate;
   }
 
-  public IPv6DTlsServer(int heartbeat)  {
-    super(new BcTlsCrypto(new SecureRandom()));
+  /**
+   * @param credentials the ServerCredentials shared by all handshakes
+   * @param sessionCache the SessionCache shared by all handshakes, or null to disable resumption
+   * @param connectionId the connection ID to offer to the client, or null to offer none
+   * @param heartbeat the heartbeat interval in milliseconds
+   */
+  public IPv6DTlsServer(ServerCredentials credentials, @Nullable SessionCache sessionCache,
+      byte[] connectionId, int heartbeat)  {
+    super(credentials.getCrypto());
+    this.credentials = credentials;
+    this.sessionCache = sessionCache;
+    this.connectionId = connectionId;
     this.heartbeat = heartbeat;
-    String[] caResourceNames = new String[]{"dtlsserver.cert", "ca.cert"};
-    try {
-      serverCertChain = DTLSUtils.loadCertificateChain (getCrypto(), caResourceNames);
-      logger.finest("Survived DTLSUtils code");
-    } catch (IOException e) {
-      throw new IllegalStateException("Incorrectly bundled, failure to read certificates", e);
-    }
-    logger.finer("Certificate chain loaded");
-
-    trustedCA = serverCertChain.getCertificateAt(caResourceNames.length-1);
-
-    try {
-      privateKey = DTLSUtils.loadBcPrivateKeyResource("dtlsserver.key");
-      logger.finest("Survived DTLSUtils code");
-    } catch (IOException e) {
-      throw new IllegalStateException("Incorrectly bundled, failure to read private key", e);
-    }
-    logger.finer("private key loaded");
-    
-    chainChecker = new ChainChecker(trustedCA);
-    
-    // self-check configuration: we would need to accept our own certificate!
-    try {
-      chainChecker.checkChain(serverCertChain.getCertificateList());
-      logger.finer("Trust chain checked OK");
-    } catch (Exception e) {
-      try {
-        logger.fine("Failed to verify cert chain of server itself:\n" 
-            + "\nServer -------\n-----BEGIN CERTIFICATE-----\n" 
-            + Base64.getEncoder().encodeToString(serverCertChain.getCertificateAt(0).getEncoded()) 
-            + "\n-----END CERTIFICATE-----\n"
-            + "\n\nCA -------\n-----BEGIN CERTIFICATE-----\n" 
-            + Base64.getEncoder().encodeToString(trustedCA.getEncoded()) 
-            + "\n-----END CERTIFICATE-----\n"
-            );
-      } catch (IOException e1) {
-        logger.log(Level.WARNING, "Cannot generate diagnostics for mal-configuration", e1);
-      }
-
-      throw new IllegalStateException("I wouldn't even trust myself", e);
-    }
-    logger.info("Constructed OK");
   }
 
   @Override
@@ -165,8 +134,8 @@ class IPv6DTlsServer extends DefaultTlsServer {
   @Override
   protected TlsCredentialedDecryptor getRSAEncryptionCredentials() throws IOException {
     return DTLSUtils.loadEncryptionCredentials(context,
-        serverCertChain,
-        privateKey);
+        credentials.getServerCertChain(),
+        credentials.getPrivateKey());
   }
 
   @Override
@@ -177,8 +146,8 @@ class IPv6DTlsServer extends DefaultTlsServer {
       return DTLSUtils.loadSignerCredentials(context,
           clientSigAlgs,
           SignatureAlgorithm.rsa,
-          serverCertChain,
-          privateKey);
+          credentials.getServerCertChain(),
+          credentials.getPrivateKey());
     } catch (NoSupportedAlgorithm noSupportedAlgorithm) {
       throw new IOException(noSupportedAlgorithm);
     }
@@ -221,10 +190,64 @@ class IPv6DTlsServer extends DefaultTlsServer {
       }
     }
 
-    expiryDate = chainChecker.checkChain(chain);
+    expiryDate = credentials.getChainChecker().checkChain(chain);
     clientCert = chain [0];
   }
 
+  /**
+   * Offer the connection ID, if the client supports RFC 9146. The client then puts it in each
+   * record it sends, so that its session survives a change of its address.
+   */
+  @Override
+  protected byte[] getNewConnectionID() {
+    return connectionId == null ? null : connectionId.clone();
+  }
+
+  @Override
+  public byte[] getNewSessionID() {
+    return sessionCache == null ? null : sessionCache.newSessionID();
+  }
+
+  /**
+   * Look up a session the client asks to resume, and restore the client's certificate from it. The
+   * certificate chain is checked again, which is usually answered from the {@link ChainChecker}'s
+   * cache, so that revocations and expiry since the full handshake are noticed.
+   */
+  @Override
+  public TlsSession getSessionToResume(byte[] sessionID) {
+    if (sessionCache == null) {
+      return null;
+    }
+    final TlsSession session = sessionCache.get(sessionID);
+    if (session == null) {
+      return null;
+    }
+    final SessionParameters parameters = session.exportSessionParameters();
+    final Certificate peerCertificate = parameters == null ? null : parameters.getPeerCertificate();
+    if (peerCertificate == null || peerCertificate.isEmpty()) {
+      sessionCache.remove(sessionID);
+      return null;
+    }
+    try {
+      expiryDate = credentials.getChainChecker().checkChain(peerCertificate.getCertificateList());
+    } catch (IOException e) {
+      logger.log(Level.INFO, "Not resuming session, client certificate is no longer accepted", e);
+      sessionCache.remove(sessionID);
+      return null;
+    }
+    clientCert = peerCertificate.getCertificateAt(0);
+    logger.fine("Resuming DTLS session");
+    return session;
+  }
+
+  @Override
+  public void notifySession(TlsSession session) {
+    super.notifySession(session);
+    if (sessionCache != null && clientCert != null && expiryDate != null) {
+      sessionCache.put(session, expiryDate);
+    }
+  }
+
   /**
    * @return the clientCert
    */
@@ -236,7 +259,7 @@ class IPv6DTlsServer extends DefaultTlsServer {
    * @return the caCert
    */
   public TlsCertificate getCaCert() {
-    return trustedCA;
+    return credentials.getTrustedCA();
   }
 
 }
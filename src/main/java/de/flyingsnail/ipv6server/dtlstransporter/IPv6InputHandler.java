@@ -21,22 +21,18 @@
 package de.flyingsnail.ipv6server.dtlstransporter;
 
 import java.io.IOException;
-import java.net.Inet6Address;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.rmi.NoSuchObjectException;
-import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.bouncycastle.tls.DTLSTransport;
-import org.bouncycastle.tls.TlsFatalAlert;
-import org.bouncycastle.util.encoders.Hex;
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
 
+import de.flyingsnail.ipv6server.dtlstransporter.DTLSData.ServerTransportTupel;
 import de.flyingsnail.tun.LinuxTunChannel;
 
 
@@ -72,7 +68,27 @@ public class IPv6InputHandler implements Runnable, BufferWriter, AutoCloseable {
 
   private boolean passUnHandled;
 
-  final ForkJoinPool executorPool = new ForkJoinPool(2 * java.lang.Runtime.getRuntime().availableProcessors());
+  /** The DrrScheduler serving the OutboundQueues, i.e. running the DTLS record protection */
+  private final @NonNull DrrScheduler scheduler;
+
+  /** The pool of buffers to read packets into; a buffer travels with its packet to the OutboundQueue */
+  private final @NonNull BufferPool bufferPool;
+
+  /** Generates ICMPv6 error messages for packets that cannot be forwarded */
+  private final @NonNull IcmpResponder icmpResponder;
+
+  /** Takes the generated ICMPv6 error messages to the tun device; the TunWriter once set */
+  private @NonNull BufferWriter icmpWriter = this;
+
+  /** Outcome of handling a packet read from the tun device */
+  private enum Disposition {
+    /** there is no session for the packet's destination address */
+    NO_SESSION,
+    /** the packet's buffer was handed over to a session's OutboundQueue */
+    QUEUED,
+    /** the packet was dealt with, its buffer may be re-used */
+    DONE
+  }
  
   private ReadableByteChannel inputChannel;
   
@@ -85,10 +101,18 @@ public class IPv6InputHandler implements Runnable, BufferWriter, AutoCloseable {
    * @param dtlsData the registry of DTLS sessions per IPv6 address
    * @param tunDevice the name of the tun device to read from via TUNTOPIPE.
    * @param toAyiya a WritableByteChannel to write packets to that are not handled by this handler. May be null, switching off the feature.
+   * @param scheduler the DrrScheduler sending the queued packets, shared by all IPv6InputHandlers.
+   * @param bufferPool the BufferPool to read packets into, shared with the sessions' OutboundQueues.
+   * @param icmpResponder the IcmpResponder generating ICMPv6 error messages, shared by all IPv6InputHandlers.
    * @throws IllegalStateException in case of incorrectly deployed application, e.g. if TUNTOPIPE cannot be launched
    */
-  public IPv6InputHandler(@NonNull DTLSData dtlsData, @NonNull String tunDevice, @Nullable WritableByteChannel toAyiya) throws IllegalStateException, IOException {
+  public IPv6InputHandler(@NonNull DTLSData dtlsData, @NonNull String tunDevice, @Nullable WritableByteChannel toAyiya,
+      @NonNull DrrScheduler scheduler, @NonNull BufferPool bufferPool, @NonNull IcmpResponder icmpResponder)
+          throws IllegalStateException, IOException {
     this.dtlsData = dtlsData;
+    this.scheduler = scheduler;
+    this.bufferPool = bufferPool;
+    this.icmpResponder = icmpResponder;
     this.passUnHandled = (toAyiya != null);
     passOnChannel = toAyiya;
     logger.info("Constructing process launching IPv6InputHandler");
@@ -99,23 +123,61 @@ public class IPv6InputHandler implements Runnable, BufferWriter, AutoCloseable {
     outputChannel = netDevice;
   }
 
+  /**
+   * Constructor for reading from an already opened tun device, or one queue of a multi queue tun device.
+   * @param dtlsData the registry of DTLS sessions per IPv6 address
+   * @param tunChannel the ByteChannel to read IPv6 packets from and to write IPv6 packets to.
+   * @param toAyiya a WritableByteChannel to write packets to that are not handled by this handler. May be null, switching off the feature.
+   * @param scheduler the DrrScheduler sending the queued packets, shared by all IPv6InputHandlers.
+   * @param bufferPool the BufferPool to read packets into, shared with the sessions' OutboundQueues.
+   * @param icmpResponder the IcmpResponder generating ICMPv6 error messages, shared by all IPv6InputHandlers.
+   */
+  public IPv6InputHandler(@NonNull DTLSData dtlsData, @NonNull ByteChannel tunChannel, @Nullable WritableByteChannel toAyiya,
+      @NonNull DrrScheduler scheduler, @NonNull BufferPool bufferPool, @NonNull IcmpResponder icmpResponder) {
+    this.dtlsData = dtlsData;
+    this.scheduler = scheduler;
+    this.bufferPool = bufferPool;
+    this.icmpResponder = icmpResponder;
+    this.passUnHandled = (toAyiya != null);
+    passOnChannel = toAyiya;
+    logger.info("Constructing IPv6InputHandler");
+    inputChannel = tunChannel;
+    outputChannel = tunChannel;
+  }
+
   /* (non-Javadoc)
    * @see java.lang.Runnable#run()
    */
   @Override
   public void run() {
     logger.info("Listening for IPv6 packets");
-    final ByteBuffer buffer = ByteBuffer.allocateDirect(32767);
+    // keeps the tun device drained while the pool is exhausted, must never be queued
+    final ByteBuffer spare = ByteBuffer.allocateDirect(bufferPool.getBufferSize());
+    ByteBuffer buffer = acquireOr(spare);
     try {
       while (true) {
-        readAndVerifyIpv6Packet(buffer);
-        if (!handleIPv6Packet(buffer)) {
-          if (passUnHandled) {
+        final boolean complete = readAndVerifyIpv6Packet(buffer);
+        if (buffer == spare) {
+          // dropped; the BufferPool counted the failed acquire
+          buffer = acquireOr(spare);
+          continue;
+        }
+        switch (handleIPv6Packet(buffer, complete)) {
+        case QUEUED:
+          // the OutboundQueue owns the buffer now
+          buffer = acquireOr(spare);
+          break;
+        case NO_SESSION:
+          if (passUnHandled && complete) {
             logger.finer(() -> "Passing packet to stdout");
             passOnChannel.write(buffer);
           } else {
-            logger.log(Level.WARNING, "Unsupported IPv6 address referred from incoming IPv6 packet");
+            // typically scans of our address space - keep this cheap, no logging per packet
+            icmpResponder.sendDestinationUnreachable(buffer, icmpWriter);
           }
+          break;
+        case DONE:
+          break;
         }
       }
     } catch (Exception e) {
@@ -136,13 +198,31 @@ public class IPv6InputHandler implements Runnable, BufferWriter, AutoCloseable {
     }
   }
 
+  /**
+   * Route the ICMPv6 error messages to the tun device through the single writer thread, instead of
+   * writing them from this reader thread. Must be called before the handler is started.
+   * @param tunWriter the TunWriter of the tun device
+   */
+  void setIcmpWriter(@NonNull BufferWriter tunWriter) {
+    this.icmpWriter = tunWriter;
+  }
+
+  /**
+   * @param spare the ByteBuffer to use if the BufferPool is exhausted
+   * @return a ByteBuffer from the BufferPool, or spare
+   */
+  private @NonNull ByteBuffer acquireOr(@NonNull ByteBuffer spare) {
+    final ByteBuffer bb = bufferPool.acquire();
+    return bb != null ? bb : spare;
+  }
+
   /**
    * Helper function to read exactly one packet.
    * @param buffer
-   * @param ic
+   * @return a boolean indicating if the packet was read completely; false means it was larger than buffer.
    * @throws IOException
    */
-  private void readAndVerifyIpv6Packet(ByteBuffer buffer) throws IOException {
+  private boolean readAndVerifyIpv6Packet(ByteBuffer buffer) throws IOException {
     buffer.clear();
     // read packet
     final int bytesRead = inputChannel.read(buffer);
@@ -153,77 +233,65 @@ public class IPv6InputHandler implements Runnable, BufferWriter, AutoCloseable {
     buffer.flip();
     final int packetSize = verifyHeaderReturnPacketLength(buffer);
     if (buffer.remaining() != packetSize + IPV6PACKET_HEADER_LENGTH) {
+      if (bytesRead == buffer.capacity() && packetSize + IPV6PACKET_HEADER_LENGTH > bytesRead) {
+        // the tun device truncated the packet to our buffer size
+        return false;
+      }
       throw new IOException("Packet size from header " + packetSize + " is inconsistent with read packet length " + bytesRead);
     }
-    logger.finer(() -> "Received packet, size " + buffer.remaining());
+    if (logger.isLoggable(Level.FINER)) {
+      logger.finer("Received packet, size " + buffer.remaining());
+    }
+    return true;
   }
 
-  private ByteBuffer javaArrayBuffer = ByteBuffer.allocate(32767);
-
   /**
-   * Write the IPv6 packet to the corresponding DTLS session (i.e. the object with the client IPv6
-   * address that is receiver of the packet).
+   * Queue the IPv6 packet for the corresponding DTLS session (i.e. the object with the client IPv6
+   * address that is receiver of the packet). The packet is sent asynchronously by the session's
+   * OutboundQueue, so a slow client does not delay packets for other clients.
    * 
    * @param buffer the ByteBuffer containing the packet. Position() points to the first byte to use, limit() after
    *        the last one.
-   * @return a boolean indicating if the supplied packet was found to be valid and could be sent. 
-   * @throws IOException in case of communication problems.
+   * @param complete a boolean indicating if buffer contains the complete packet; if false, it is too big to handle.
+   * @return a Disposition telling what happened to the packet and its buffer. 
    */
-  private boolean handleIPv6Packet(ByteBuffer buffer) {
-    byte[] addr = new byte[16];
-    buffer.slice().position(IPV6PACKET_DESTINATION_OFFSET).get(addr);
-    // TODO in java 16, replace by buffer.get (buffer.position() + IPV6PACKET_DESTINATION_OFFSET, addr);
+  private Disposition handleIPv6Packet(ByteBuffer buffer, boolean complete) {
+    // longest prefix match of the destination address in place, without copying it out of the packet
+    final ServerTransportTupel session = dtlsData.getServerTransport(buffer, buffer.position() + IPV6PACKET_DESTINATION_OFFSET);
+    if (session == null) {
+      return Disposition.NO_SESSION;
+    }
+    final DTLSTransport dtlsServer = session.getTransport();
 
-    Inet6Address receiver;
+    int mtu;
     try {
-      receiver = (Inet6Address) Inet6Address.getByAddress(addr);
-    } catch (UnknownHostException e1) {
-      logger.info("Illegal length of IP address - discarding");
-      return false;
+      mtu = dtlsServer.getSendLimit();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Cannot determine send limit, client session might recover", e);
+      return Disposition.DONE;
     }
-    DTLSTransport dtlsServer;
-    try {
-      dtlsServer = dtlsData.getServerTransport(receiver).getTransport();
-    } catch (NoSuchObjectException e) {
-      return false;
+    if (!complete || buffer.remaining() > mtu) {
+      // the send limit is the largest IPv6 packet that fits into one DTLS record of this session
+      icmpResponder.sendPacketTooBig(buffer, Math.min(mtu, bufferPool.getBufferSize()), icmpWriter);
+      return Disposition.DONE;
     }
-        
-    try {
-      int mtu = dtlsServer.getSendLimit();
-      if (buffer.remaining() > mtu) {
-        sendPacketTooBig(receiver, mtu);
-      } else if (buffer.hasArray()) {
-        logger.fine(()->"About to send " + buffer.remaining() + " bytes from array-backed buffer to dtls");
-        dtlsServer.send(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
-        buffer.position(buffer.limit());
-      } else {
-        logger.fine(()->"About to send " + buffer.remaining() + " bytes from direct buffer to dtls");
-
-        synchronized (javaArrayBuffer) {
-          javaArrayBuffer.clear();
-          javaArrayBuffer.put(buffer);
-          logger.finer(()->"About to send copied " + javaArrayBuffer.position() + " bytes to dtls");
-          logger.finest(()->"Buffer content: " +
-            new String(Hex.encode(javaArrayBuffer.array(), javaArrayBuffer.arrayOffset(), javaArrayBuffer.position()))
-          );
-          dtlsServer.send(javaArrayBuffer.array(), javaArrayBuffer.arrayOffset(), javaArrayBuffer.position());
-        }
-      }
-    } catch (TlsFatalAlert e) {
-      logger.log(Level.WARNING, "Fatal signal from DTLS engine, client session died for " + receiver, e);
-      dtlsData.removeServerTransport(receiver);
-      return false;
-    } catch (IOException e) {
-      logger.log(Level.WARNING, "Handling of packet caused IO exception, client session might recover", e);
-      return true;
+
+    // police the tunnel's downstream rate before the packet occupies the queue and the sender threads
+    final TokenBucket limit = session.getDownstreamLimit();
+    if (limit != null && !limit.tryConsume(buffer.remaining())) {
+      logger.finer("Downstream rate limit exceeded, dropped packet");
+      return Disposition.DONE;
     }
-    logger.log(Level.FINE, "Send IPv6 packet for address {0} to {1}", new Object[] {receiver, dtlsServer});
-    return true;
-  }
 
-  private void sendPacketTooBig(Inet6Address receiver, int mtu) {
-    // TODO create ICMP packet too big packet (ICMP type 2)
-    logger.warning("Unimplemented: too big packet recieved");
+    // hand over the buffer without copying; the OutboundQueue returns it to the pool
+    if (!session.getOutboundQueue().offer(buffer, scheduler)) {
+      logger.finer("Outbound queue full, dropped packet");
+      return Disposition.DONE;
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.log(Level.FINE, "Queued IPv6 packet for address {0} to {1}", new Object[] {session.getPrefix(), dtlsServer});
+    }
+    return Disposition.QUEUED;
   }
 
   /**
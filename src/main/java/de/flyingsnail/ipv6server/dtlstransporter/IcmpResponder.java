@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Generates ICMPv6 error messages (RFC 4443) in response to packets read from the tun device,
+ * and writes them back into the tun device through the TunWriter, so that the tun reader threads
+ * do not contend with the writer thread for the device.
+ * <p>
+ * Error messages are rate limited, both per destination (i.e. per source of the offending packet)
+ * and in total. Limiting per destination uses a fixed size table indexed by a hash of the address,
+ * so that it neither allocates nor grows; two destinations sharing a slot share their limit.
+ * <p>
+ * Packets to addresses without a session are typically scans of our address space. To make them
+ * cheap, addresses recently found unknown are kept in a small negative cache; further packets to
+ * them are just counted and dropped, without generating an error message again.
+ */
+class IcmpResponder {
+  static final int NEXT_HEADER_ICMPV6 = 58;
+  static final int ICMPV6_HEADER_LENGTH = 8;
+  static final int TYPE_DESTINATION_UNREACHABLE = 1;
+  static final int CODE_ADDRESS_UNREACHABLE = 3;
+  static final int TYPE_PACKET_TOO_BIG = 2;
+  /** Minimum MTU of IPv6, an ICMPv6 error message must not exceed it */
+  static final int IPV6_MIN_MTU = 1280;
+
+  private static final int IPV6PACKET_NEXT_HEADER_OFFSET = 6;
+  private static final int IPV6PACKET_DESTINATION_OFFSET = 24;
+  private static final int HOP_LIMIT = 64;
+
+  /** Number of slots in the per destination rate limiting table, must be a power of two */
+  private static final int RATE_LIMIT_SLOTS = 4096;
+
+  /** Number of entries in the negative cache of unknown destinations, must be a power of two */
+  private static final int NEGATIVE_CACHE_SLOTS = 1024;
+
+  private final Logger logger = Logger.getLogger(IcmpResponder.class.getName());
+
+  /** Configured source address of generated messages, or null to derive it from the offending packet */
+  private final Inet6Address sourceAddress;
+  private final long sourceHigh;
+  private final long sourceLow;
+
+  /** Minimum interval between two messages to the same destination */
+  private final long minIntervalNanos;
+
+  /** Maximum number of messages in total per second */
+  private final int maxPerSecond;
+
+  /** Time stamps of the last message per slot */
+  private final AtomicLongArray lastSent = new AtomicLongArray(RATE_LIMIT_SLOTS);
+
+  private final AtomicLong currentSecond = new AtomicLong();
+  private final AtomicInteger sentThisSecond = new AtomicInteger();
+
+  /**
+   * Negative cache of unknown destinations: per slot upper address, lower address and time stamp.
+   * Slots are updated without locking; a torn entry at worst causes one error message too many or
+   * too few.
+   */
+  private final AtomicLongArray unknownDestinations = new AtomicLongArray(3 * NEGATIVE_CACHE_SLOTS);
+
+  /** Time an unknown destination stays in the negative cache */
+  private final long negativeCacheNanos;
+
+  private final AtomicLong packetTooBigCounter = new AtomicLong();
+  private final AtomicLong noSessionCounter = new AtomicLong();
+  private final AtomicLong unreachableCounter = new AtomicLong();
+  private final AtomicLong suppressedCounter = new AtomicLong();
+
+  /** Per thread buffer to build messages in */
+  private static final ThreadLocal<ByteBuffer> messageBuffer =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(IPV6_MIN_MTU));
+
+  /**
+   * @param sourceAddress the Inet6Address to send error messages from. If null, the address with
+   *        interface id ::1 in the /64 of the offending packet's destination is used, which is the
+   *        address of the tun device in the standard setup.
+   * @param minIntervalMillis the minimum interval between two messages to the same destination
+   * @param maxPerSecond the maximum number of messages per second in total
+   * @param negativeCacheMillis the time an unknown destination is remembered
+   */
+  IcmpResponder(@Nullable Inet6Address sourceAddress, long minIntervalMillis, int maxPerSecond,
+      long negativeCacheMillis) {
+    this.sourceAddress = sourceAddress;
+    if (sourceAddress != null) {
+      byte[] raw = sourceAddress.getAddress();
+      sourceHigh = SessionRegistry.high(raw);
+      sourceLow = SessionRegistry.low(raw);
+    } else {
+      sourceHigh = 0L;
+      sourceLow = 0L;
+    }
+    this.minIntervalNanos = minIntervalMillis * 1_000_000L;
+    this.maxPerSecond = maxPerSecond;
+    this.negativeCacheNanos = negativeCacheMillis * 1_000_000L;
+  }
+
+  /**
+   * Send an ICMPv6 packet too big message in response to a packet that cannot be forwarded.
+   * @param invoking the ByteBuffer containing the offending packet (or at least its beginning) between
+   *        position and limit. It is not altered.
+   * @param mtu the MTU of the tunnel the packet was meant for
+   * @param out the BufferWriter queueing packets to the tun device, i.e. the TunWriter
+   */
+  void sendPacketTooBig(@NonNull ByteBuffer invoking, int mtu, @NonNull BufferWriter out) {
+    if (mayRespondTo(invoking) && sendError(invoking, TYPE_PACKET_TOO_BIG, 0, mtu, out)) {
+      packetTooBigCounter.incrementAndGet();
+    }
+  }
+
+  /**
+   * Handle a packet to an address that has no session: count it, and send an ICMPv6 destination
+   * unreachable (address unreachable) message unless the destination is in the negative cache.
+   * Packets to multicast destinations, e.g. the host's own MLD reports, are never answered
+   * (RFC 4443, 2.4 (e)).
+   * @param invoking the ByteBuffer containing the offending packet between position and limit.
+   *        It is not altered.
+   * @param out the BufferWriter queueing packets to the tun device, i.e. the TunWriter
+   */
+  void sendDestinationUnreachable(@NonNull ByteBuffer invoking, @NonNull BufferWriter out) {
+    noSessionCounter.incrementAndGet();
+    final int p = invoking.position();
+    final long high = invoking.getLong(p + IPV6PACKET_DESTINATION_OFFSET);
+    final long low = invoking.getLong(p + IPV6PACKET_DESTINATION_OFFSET + 8);
+    if (isMulticast(high) || isKnownUnknown(high, low) || !mayRespondTo(invoking)) {
+      return;
+    }
+    if (sendError(invoking, TYPE_DESTINATION_UNREACHABLE, CODE_ADDRESS_UNREACHABLE, 0, out)) {
+      unreachableCounter.incrementAndGet();
+    }
+  }
+
+  /**
+   * Check the negative cache for an unknown destination, and enter it if missing or expired.
+   * @param high upper 64 bits of the destination address
+   * @param low lower 64 bits of the destination address
+   * @return true if the destination was found unknown recently
+   */
+  private boolean isKnownUnknown(long high, long low) {
+    final long now = System.nanoTime();
+    final int i = 3 * (slot(high, low) & (NEGATIVE_CACHE_SLOTS - 1));
+    final long time = unknownDestinations.get(i + 2);
+    if (time != 0L && now - time < negativeCacheNanos
+        && unknownDestinations.get(i) == high && unknownDestinations.get(i + 1) == low) {
+      return true;
+    }
+    unknownDestinations.set(i, high);
+    unknownDestinations.set(i + 1, low);
+    unknownDestinations.set(i + 2, now);
+    return false;
+  }
+
+  /**
+   * @param high upper 64 bits of an IPv6 address
+   * @return true if the address is a multicast address (ff00::/8)
+   */
+  private static boolean isMulticast(long high) {
+    return (high >>> 56) == 0xff;
+  }
+
+  /**
+   * Build an ICMPv6 error message and hand it to the writer of the tun device, which copies it.
+   * @return true if the message was handed over; false if there is no valid source address for it,
+   *         or writing failed.
+   */
+  private boolean sendError(ByteBuffer invoking, int type, int code, int parameter, BufferWriter out) {
+    final int p = invoking.position();
+    final long srcHigh = sourceAddress != null ? sourceHigh : invoking.getLong(p + IPV6PACKET_DESTINATION_OFFSET);
+    final long srcLow = sourceAddress != null ? sourceLow : 1L;
+    if (isMulticast(srcHigh)) {
+      // the source of an error message must be unicast; it cannot be derived from a multicast destination
+      return false;
+    }
+    final ByteBuffer message = messageBuffer.get();
+    message.clear();
+    buildErrorMessage(message, invoking, type, code, parameter, srcHigh, srcLow);
+    try {
+      out.write(message);
+      if (logger.isLoggable(Level.FINER)) {
+        logger.finer("Sent ICMPv6 error type " + type + " code " + code);
+      }
+      return true;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to write ICMPv6 error message", e);
+      return false;
+    }
+  }
+
+  /**
+   * Check if an error message in response to the supplied packet is allowed, both by RFC 4443 and
+   * the rate limits.
+   * @param invoking the ByteBuffer containing the offending packet
+   * @return true if a message should be sent
+   */
+  private boolean mayRespondTo(ByteBuffer invoking) {
+    final int p = invoking.position();
+    final long high = invoking.getLong(p + IPv6InputHandler.IPV6PACKET_SOURCE_OFFSET);
+    final long low = invoking.getLong(p + IPv6InputHandler.IPV6PACKET_SOURCE_OFFSET + 8);
+    // never respond to the unspecified or to a multicast address
+    if ((high == 0L && low == 0L) || isMulticast(high)) {
+      return false;
+    }
+    // never respond to ICMPv6 error messages (types below 128)
+    if (invoking.get(p + IPV6PACKET_NEXT_HEADER_OFFSET) == NEXT_HEADER_ICMPV6
+        && invoking.remaining() > IPv6InputHandler.IPV6PACKET_HEADER_LENGTH
+        && invoking.get(p + IPv6InputHandler.IPV6PACKET_HEADER_LENGTH) >= 0) {
+      return false;
+    }
+    final long now = System.nanoTime();
+
+    // per destination limit
+    final int slot = slot(high, low);
+    final long last = lastSent.get(slot);
+    if ((last != 0L && now - last < minIntervalNanos) || !lastSent.compareAndSet(slot, last, now)) {
+      suppressedCounter.incrementAndGet();
+      return false;
+    }
+
+    // global limit
+    final long second = now / 1_000_000_000L;
+    final long current = currentSecond.get();
+    if (second != current && currentSecond.compareAndSet(current, second)) {
+      sentThisSecond.set(0);
+    }
+    if (sentThisSecond.incrementAndGet() > maxPerSecond) {
+      suppressedCounter.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  private static int slot(long high, long low) {
+    long h = (high ^ low) * 0x9e3779b97f4a7c15L;
+    return (int)(h >>> 32) & (RATE_LIMIT_SLOTS - 1);
+  }
+
+  /**
+   * Build an ICMPv6 error message into a buffer. The message quotes as much of the invoking packet
+   * as fits into the IPv6 minimum MTU.
+   * @param message the ByteBuffer to build the message in, cleared. On return, it is flipped and
+   *        contains the complete IPv6 packet.
+   * @param invoking the ByteBuffer containing the offending packet between position and limit.
+   * @param type the ICMPv6 type
+   * @param code the ICMPv6 code
+   * @param parameter the type specific 32 bit value following the checksum, e.g. the MTU
+   * @param srcHigh upper 64 bits of the source address
+   * @param srcLow lower 64 bits of the source address
+   */
+  static void buildErrorMessage(@NonNull ByteBuffer message, @NonNull ByteBuffer invoking,
+      int type, int code, int parameter, long srcHigh, long srcLow) {
+    final int p = invoking.position();
+    final int quoted = Math.min(invoking.remaining(),
+        IPV6_MIN_MTU - IPv6InputHandler.IPV6PACKET_HEADER_LENGTH - ICMPV6_HEADER_LENGTH);
+    final int icmpLength = ICMPV6_HEADER_LENGTH + quoted;
+    final long dstHigh = invoking.getLong(p + IPv6InputHandler.IPV6PACKET_SOURCE_OFFSET);
+    final long dstLow = invoking.getLong(p + IPv6InputHandler.IPV6PACKET_SOURCE_OFFSET + 8);
+
+    final int start = message.position();
+    // IPv6 header
+    message.putInt(6 << 28);
+    message.putShort((short)icmpLength);
+    message.put((byte)NEXT_HEADER_ICMPV6);
+    message.put((byte)HOP_LIMIT);
+    message.putLong(srcHigh).putLong(srcLow);
+    message.putLong(dstHigh).putLong(dstLow);
+    // ICMPv6 header
+    final int icmpStart = message.position();
+    message.put((byte)type);
+    message.put((byte)code);
+    message.putShort((short)0);
+    message.putInt(parameter);
+    // as much of the invoking packet as fits
+    for (int i = 0; i < quoted; i++) {
+      message.put(invoking.get(p + i));
+    }
+    message.putShort(icmpStart + 2, checksum(message, start, icmpStart, icmpLength));
+    message.flip();
+    message.position(start);
+  }
+
+  /**
+   * Compute the ICMPv6 checksum, covering the pseudo header and the ICMPv6 message.
+   * @param packet the ByteBuffer containing the IPv6 packet; the checksum field must be zero.
+   * @param ipStart the absolute index of the IPv6 header
+   * @param icmpStart the absolute index of the ICMPv6 header
+   * @param icmpLength the length of the ICMPv6 message
+   * @return the checksum to put into the ICMPv6 header
+   */
+  static short checksum(@NonNull ByteBuffer packet, int ipStart, int icmpStart, int icmpLength) {
+    long sum = 0;
+    // pseudo header: source and destination address, upper layer length, next header
+    for (int i = IPv6InputHandler.IPV6PACKET_SOURCE_OFFSET; i < IPv6InputHandler.IPV6PACKET_HEADER_LENGTH; i += 2) {
+      sum += packet.getShort(ipStart + i) & 0xffff;
+    }
+    sum += icmpLength;
+    sum += NEXT_HEADER_ICMPV6;
+    // the message itself
+    int i = 0;
+    for (; i + 1 < icmpLength; i += 2) {
+      sum += packet.getShort(icmpStart + i) & 0xffff;
+    }
+    if (i < icmpLength) {
+      sum += (packet.get(icmpStart + i) & 0xff) << 8;
+    }
+    while ((sum >>> 16) != 0) {
+      sum = (sum & 0xffff) + (sum >>> 16);
+    }
+    return (short)~sum;
+  }
+
+  /**
+   * @return the number of packet too big messages sent
+   */
+  long getPacketTooBigCount() {
+    return packetTooBigCounter.get();
+  }
+
+  /**
+   * @return the number of packets read for destinations without a session
+   */
+  long getNoSessionCount() {
+    return noSessionCounter.get();
+  }
+
+  /**
+   * @return the number of destination unreachable messages sent
+   */
+  long getUnreachableCount() {
+    return unreachableCounter.get();
+  }
+
+  /**
+   * @return the number of error messages suppressed by rate limiting
+   */
+  long getSuppressedCount() {
+    return suppressedCounter.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ICMPv6 packet too big sent %d, no session %d, unreachable sent %d, suppressed %d",
+        getPacketTooBigCount(), getNoSessionCount(), getUnreachableCount(), getSuppressedCount());
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.net.Inet6Address;
+import java.nio.ByteBuffer;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * An immutable IPv6 prefix, i.e. a network address and a prefix length, represented as two
+ * primitive longs. A single address is a prefix of length 128.
+ */
+final class Ipv6Prefix {
+  private final long high;
+  private final long low;
+  private final int length;
+
+  /**
+   * @param high the upper 64 bits of the address; bits beyond the prefix length are cleared
+   * @param low the lower 64 bits of the address; bits beyond the prefix length are cleared
+   * @param length the prefix length, 0 to 128
+   */
+  Ipv6Prefix(long high, long low, int length) {
+    if (length < 0 || length > 128) {
+      throw new IllegalArgumentException("Invalid IPv6 prefix length " + length);
+    }
+    this.high = high & highMask(length);
+    this.low = low & lowMask(length);
+    this.length = length;
+  }
+
+  /**
+   * @param address the Inet6Address; bits beyond the prefix length are cleared
+   * @param length the prefix length, 0 to 128
+   */
+  Ipv6Prefix(@NonNull Inet6Address address, int length) {
+    this(SessionRegistry.high(address.getAddress()), SessionRegistry.low(address.getAddress()), length);
+  }
+
+  /**
+   * Mask of the upper 64 bits of a prefix length.
+   * @param length the prefix length, 0 to 128
+   * @return the mask to apply to the upper 64 bits of an address
+   */
+  static long highMask(int length) {
+    return length == 0 ? 0L : (length >= 64 ? -1L : -1L << (64 - length));
+  }
+
+  /**
+   * Mask of the lower 64 bits of a prefix length.
+   * @param length the prefix length, 0 to 128
+   * @return the mask to apply to the lower 64 bits of an address
+   */
+  static long lowMask(int length) {
+    return length <= 64 ? 0L : (length == 128 ? -1L : -1L << (128 - length));
+  }
+
+  /**
+   * Check if an address belongs to this prefix. This does not allocate.
+   * @param addressHigh the upper 64 bits of the address
+   * @param addressLow the lower 64 bits of the address
+   * @return true if the address is within this prefix
+   */
+  boolean contains(long addressHigh, long addressLow) {
+    return (addressHigh & highMask(length)) == high && (addressLow & lowMask(length)) == low;
+  }
+
+  /**
+   * Check if an address stored in a ByteBuffer, e.g. a packet header, belongs to this prefix.
+   * This does not alter position or limit of the buffer.
+   * @param bb the ByteBuffer holding the address in network byte order
+   * @param offset the absolute index of the first byte of the address
+   * @return true if the address is within this prefix
+   */
+  boolean contains(@NonNull ByteBuffer bb, int offset) {
+    return contains(bb.getLong(offset), bb.getLong(offset + 8));
+  }
+
+  /**
+   * @return the upper 64 bits of the network address
+   */
+  long getHigh() {
+    return high;
+  }
+
+  /**
+   * @return the lower 64 bits of the network address
+   */
+  long getLow() {
+    return low;
+  }
+
+  /**
+   * @return the prefix length
+   */
+  int getLength() {
+    return length;
+  }
+
+  /**
+   * @return the network address as Inet6Address
+   */
+  @NonNull Inet6Address getAddress() {
+    return SessionRegistry.toInet6Address(high, low);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof Ipv6Prefix)) {
+      return false;
+    }
+    Ipv6Prefix other = (Ipv6Prefix) obj;
+    return high == other.high && low == other.low && length == other.length;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(high) * 31 + Long.hashCode(low) * 17 + length;
+  }
+
+  @Override
+  public String toString() {
+    return getAddress().getHostAddress() + "/" + length;
+  }
+}
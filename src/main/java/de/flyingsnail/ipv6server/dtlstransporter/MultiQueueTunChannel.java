@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Memory;
+import com.sun.jna.platform.linux.ErrNo;
+import com.sun.jna.platform.linux.Fcntl;
+
+/**
+ * A ByteChannel representing one queue of a Linux tun device opened with IFF_MULTI_QUEUE.
+ * The kernel distributes flows across all queues attached to the device, so each queue can be
+ * served by its own thread.
+ * <p>
+ * The device needs to be created with multi queue support, e.g.
+ * <pre>ip tuntap add dev tun0 mode tun multi_queue user ipv6server</pre>
+ * Each read returns exactly one packet, each write sends exactly one packet. Direct buffers
+ * are read and written without copying.
+ */
+class MultiQueueTunChannel implements ByteChannel {
+  private static final String TUN_CLONE_DEVICE = "/dev/net/tun";
+
+  /** _IOW('T', 202, int) */
+  private static final long TUNSETIFF = 0x400454caL;
+
+  private static final short IFF_TUN = 0x0001;
+  private static final short IFF_NO_PI = 0x1000;
+  private static final short IFF_MULTI_QUEUE = 0x0100;
+
+  /** sizeof(struct ifreq) */
+  private static final int IFREQ_SIZE = 40;
+  private static final int IFNAMSIZ = 16;
+
+  private static final Logger logger = Logger.getLogger(MultiQueueTunChannel.class.getName());
+
+  private final int fd;
+
+  private volatile boolean open;
+
+  /** Cached base address of the most recently used direct buffer, per direction */
+  private ByteBuffer readBuffer;
+  private long readBufferAddress;
+  private ByteBuffer writeBuffer;
+  private long writeBufferAddress;
+
+  /** Serializes writers, guards writeBuffer and writeBufferAddress */
+  private final ReentrantLock writeLock = new ReentrantLock();
+
+  /**
+   * Attach a new queue to the named tun device.
+   * @param device the name of the tun device, e.g. tun0
+   * @throws IOException if the queue cannot be attached
+   */
+  MultiQueueTunChannel(String device) throws IOException {
+    NativeLibC.checkSupported();
+    byte[] name = device.getBytes(StandardCharsets.US_ASCII);
+    if (name.length >= IFNAMSIZ) {
+      throw new IllegalArgumentException("Device name too long: " + device);
+    }
+    try {
+      fd = NativeLibC.open(TUN_CLONE_DEVICE, Fcntl.O_RDWR);
+    } catch (LastErrorException e) {
+      throw NativeLibC.asIOException("open " + TUN_CLONE_DEVICE, e);
+    }
+    Memory ifr = new Memory(IFREQ_SIZE);
+    ifr.clear();
+    ifr.write(0, name, 0, name.length);
+    ifr.setShort(IFNAMSIZ, (short)(IFF_TUN | IFF_NO_PI | IFF_MULTI_QUEUE));
+    try {
+      NativeLibC.ioctl(fd, TUNSETIFF, ifr);
+    } catch (LastErrorException e) {
+      NativeLibC.close(fd);
+      throw NativeLibC.asIOException("Attaching queue to " + device + " (is it a multi_queue device?)", e);
+    }
+    open = true;
+    logger.fine(() -> "Attached queue to tun device " + device);
+  }
+
+  /**
+   * Attach a number of queues to the named tun device.
+   * @param device the name of the tun device
+   * @param count the number of queues to attach
+   * @return an array of count MultiQueueTunChannel
+   * @throws IOException if any queue cannot be attached; already attached queues are closed then.
+   */
+  static MultiQueueTunChannel[] openQueues(String device, int count) throws IOException {
+    MultiQueueTunChannel[] queues = new MultiQueueTunChannel[count];
+    try {
+      for (int i = 0; i < count; i++) {
+        queues[i] = new MultiQueueTunChannel(device);
+      }
+    } catch (IOException e) {
+      for (MultiQueueTunChannel queue: queues) {
+        if (queue != null) {
+          queue.close();
+        }
+      }
+      throw e;
+    }
+    return queues;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    if (!dst.isDirect()) {
+      ByteBuffer temp = ByteBuffer.allocateDirect(dst.remaining());
+      int n = read(temp);
+      temp.flip();
+      dst.put(temp);
+      return n;
+    }
+    if (dst != readBuffer) {
+      readBufferAddress = NativeLibC.address(dst);
+      readBuffer = dst;
+    }
+    while (true) {
+      try {
+        int n = (int)NativeLibC.read(fd, readBufferAddress + dst.position(), dst.remaining());
+        if (n > 0) {
+          dst.position(dst.position() + n);
+        }
+        return n == 0 ? -1 : n;
+      } catch (LastErrorException e) {
+        if (e.getErrorCode() != ErrNo.EINTR) {
+          throw NativeLibC.asIOException("read from tun queue", e);
+        }
+      }
+    }
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    if (!src.isDirect()) {
+      ByteBuffer temp = ByteBuffer.allocateDirect(src.remaining());
+      temp.put(src.duplicate()).flip();
+      int n = write(temp);
+      src.position(src.position() + n);
+      return n;
+    }
+    // a lock instead of the monitor, so that waiting virtual threads do not pin their carriers
+    writeLock.lock();
+    try {
+      if (src != writeBuffer) {
+        writeBufferAddress = NativeLibC.address(src);
+        writeBuffer = src;
+      }
+      while (true) {
+        try {
+          int n = (int)NativeLibC.write(fd, writeBufferAddress + src.position(), src.remaining());
+          src.position(src.position() + n);
+          return n;
+        } catch (LastErrorException e) {
+          if (e.getErrorCode() != ErrNo.EINTR) {
+            throw NativeLibC.asIOException("write to tun queue", e);
+          }
+        }
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (open) {
+      open = false;
+      try {
+        NativeLibC.close(fd);
+      } catch (LastErrorException e) {
+        throw NativeLibC.asIOException("close tun queue", e);
+      }
+    }
+  }
+}
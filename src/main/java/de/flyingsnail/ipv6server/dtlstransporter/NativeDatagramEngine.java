@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.platform.linux.ErrNo;
+
+/**
+ * A UDP socket driven through recvmmsg and sendmmsg, moving a batch of datagrams per system
+ * call in each direction.
+ * <p>
+ * {@link #receive(DatagramConsumer)} blocks until at least one datagram arrives and then takes
+ * all waiting datagrams, up to the batch size, in one call. {@link #send(ByteBuffer, InetSocketAddress)}
+ * never blocks: it copies the datagram into a staging batch, which a sender thread passes to
+ * sendmmsg. While it is sending, new datagrams accumulate in a second batch, so the batch size
+ * adapts to the load. Datagrams that find the staging batch full are dropped and counted.
+ * <p>
+ * The native structures are laid out for 64 bit Linux: struct mmsghdr of 64 bytes (a struct
+ * msghdr of 56 bytes and the received length), struct iovec of 16 bytes and struct sockaddr_in
+ * of 16 bytes. Only IPv4 is supported, as by the rest of the DTLS listener.
+ */
+class NativeDatagramEngine {
+  private static final int AF_INET = 2;
+  private static final int SOCK_DGRAM = 2;
+  private static final int SOL_SOCKET = 1;
+  private static final int SO_REUSEADDR = 2;
+  private static final int SO_REUSEPORT = 15;
+  private static final int SHUT_RDWR = 2;
+  private static final int MSG_WAITFORONE = 0x10000;
+
+  private static final int MMSGHDR_SIZE = 64;
+  private static final int IOVEC_SIZE = 16;
+  private static final int SOCKADDR_IN_SIZE = 16;
+  private static final int MSG_NAME = 0;
+  private static final int MSG_NAMELEN = 8;
+  private static final int MSG_IOV = 16;
+  private static final int MSG_IOVLEN = 24;
+  private static final int MSG_LEN = 56;
+  private static final int IOV_BASE = 0;
+  private static final int IOV_LEN = 8;
+
+  /** Consumer of received datagrams */
+  interface DatagramConsumer {
+    /**
+     * @param sender the address the datagram was received from
+     * @param datagram a ByteBuffer containing the datagram between position and limit, which is
+     *        only valid during the call
+     * @throws IOException if processing fails
+     */
+    void accept(@NonNull InetSocketAddress sender, @NonNull ByteBuffer datagram) throws IOException;
+  }
+
+  /**
+   * A batch of datagram slots with their native message headers, in one direct buffer.
+   */
+  private static final class Batch {
+    final ByteBuffer buffer;
+    final long address;
+    final int iovOffset;
+    final int nameOffset;
+    final int dataOffset;
+    final int slotSize;
+    final int capacity;
+    int count;
+
+    Batch(int capacity, int slotSize) {
+      this.capacity = capacity;
+      this.slotSize = slotSize;
+      iovOffset = capacity * MMSGHDR_SIZE;
+      nameOffset = iovOffset + capacity * IOVEC_SIZE;
+      dataOffset = nameOffset + capacity * SOCKADDR_IN_SIZE;
+      buffer = ByteBuffer.allocateDirect(dataOffset + capacity * slotSize).order(ByteOrder.nativeOrder());
+      address = NativeLibC.address(buffer);
+      for (int i = 0; i < capacity; i++) {
+        final int header = i * MMSGHDR_SIZE;
+        buffer.putLong(header + MSG_NAME, address + nameOffset + i * SOCKADDR_IN_SIZE);
+        buffer.putInt(header + MSG_NAMELEN, SOCKADDR_IN_SIZE);
+        buffer.putLong(header + MSG_IOV, address + iovOffset + i * IOVEC_SIZE);
+        buffer.putLong(header + MSG_IOVLEN, 1L);
+        buffer.putLong(iovOffset + i * IOVEC_SIZE + IOV_BASE, address + dataOffset + i * slotSize);
+        buffer.putLong(iovOffset + i * IOVEC_SIZE + IOV_LEN, slotSize);
+      }
+    }
+
+    int dataPosition(int slot) {
+      return dataOffset + slot * slotSize;
+    }
+
+    int namePosition(int slot) {
+      return nameOffset + slot * SOCKADDR_IN_SIZE;
+    }
+  }
+
+  private final Logger logger = Logger.getLogger(NativeDatagramEngine.class.getName());
+
+  private final int fd;
+
+  private volatile boolean open = true;
+
+  private final Batch receiveBatch;
+
+  /** A view of the receive batch handed to the consumer */
+  private final ByteBuffer receiveView;
+
+  /** The batch receiving datagrams to send; guarded by this */
+  private Batch filling;
+
+  /** The batch being sent by the sender thread */
+  private Batch draining;
+
+  /** The most recent sender, re-used while consecutive datagrams come from the same address */
+  private InetSocketAddress lastSender;
+  private int lastSenderIp;
+  private int lastSenderPort = -1;
+
+  private final AtomicLong receiveCallCounter = new AtomicLong();
+  private final AtomicLong receivedCounter = new AtomicLong();
+  private final AtomicLong sendCallCounter = new AtomicLong();
+  private final AtomicLong sentCounter = new AtomicLong();
+  private final AtomicLong droppedCounter = new AtomicLong();
+
+  /**
+   * Open a UDP socket and bind it.
+   * @param bindAddress the IPv4 socket address to bind to
+   * @param batchSize the maximum number of datagrams per system call
+   * @param maxDatagramSize the size of each receive slot, i.e. the largest datagram received
+   * @param maxSendSize the size of each send slot; larger datagrams to send are dropped
+   * @param reusePort a boolean requesting SO_REUSEPORT, to share the port with other sockets
+   * @throws IOException if the socket cannot be created or bound
+   * @throws IllegalStateException if not running on 64 bit Linux
+   */
+  NativeDatagramEngine(@NonNull InetSocketAddress bindAddress, int batchSize, int maxDatagramSize,
+      int maxSendSize, boolean reusePort) throws IOException, IllegalStateException {
+    NativeLibC.checkSupported();
+    if (!(bindAddress.getAddress() instanceof Inet4Address)) {
+      throw new IllegalArgumentException("Native datagram engine supports IPv4 only");
+    }
+    receiveBatch = new Batch(batchSize, maxDatagramSize);
+    receiveView = receiveBatch.buffer.duplicate();
+    filling = new Batch(batchSize, maxSendSize);
+    draining = new Batch(batchSize, maxSendSize);
+    try {
+      fd = NativeLibC.socket(AF_INET, SOCK_DGRAM, 0);
+    } catch (LastErrorException e) {
+      throw NativeLibC.asIOException("socket", e);
+    }
+    try {
+      setOption(SO_REUSEADDR);
+      if (reusePort) {
+        setOption(SO_REUSEPORT);
+      }
+      // the first name slot of the send batch serves as scratch space before sending starts
+      final int name = filling.namePosition(0);
+      putSocketAddress(filling.buffer, name, bindAddress);
+      NativeLibC.bind(fd, filling.address + name, SOCKADDR_IN_SIZE);
+    } catch (LastErrorException e) {
+      NativeLibC.close(fd);
+      throw NativeLibC.asIOException("bind to " + bindAddress, e);
+    }
+  }
+
+  /**
+   * Enable a boolean SOL_SOCKET option.
+   */
+  private void setOption(int option) throws LastErrorException {
+    final ByteBuffer value = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+    value.putInt(0, 1);
+    NativeLibC.setsockopt(fd, SOL_SOCKET, option, NativeLibC.address(value), 4);
+  }
+
+  /**
+   * Start the sender thread.
+   */
+  void start() {
+    Thread sender = new Thread(this::runSender, "Native datagram sender");
+    sender.setDaemon(true);
+    sender.start();
+  }
+
+  private static void putSocketAddress(ByteBuffer buffer, int position, InetSocketAddress address) {
+    final byte[] ip = address.getAddress().getAddress();
+    buffer.putShort(position, (short) AF_INET);
+    // port and address in network byte order
+    buffer.put(position + 2, (byte) (address.getPort() >> 8));
+    buffer.put(position + 3, (byte) address.getPort());
+    for (int i = 0; i < 4; i++) {
+      buffer.put(position + 4 + i, ip[i]);
+    }
+  }
+
+  private InetSocketAddress getSocketAddress(ByteBuffer buffer, int position) throws IOException {
+    final int port = ((buffer.get(position + 2) & 0xff) << 8) | (buffer.get(position + 3) & 0xff);
+    // network byte order, independent of the buffer's native order
+    final int ip = ((buffer.get(position + 4) & 0xff) << 24) | ((buffer.get(position + 5) & 0xff) << 16)
+        | ((buffer.get(position + 6) & 0xff) << 8) | (buffer.get(position + 7) & 0xff);
+    if (lastSender == null || ip != lastSenderIp || port != lastSenderPort) {
+      final byte[] ipBytes = {(byte)(ip >>> 24), (byte)(ip >>> 16), (byte)(ip >>> 8), (byte) ip};
+      lastSender = new InetSocketAddress(InetAddress.getByAddress(ipBytes), port);
+      lastSenderIp = ip;
+      lastSenderPort = port;
+    }
+    return lastSender;
+  }
+
+  /**
+   * Wait for datagrams and pass each to the DatagramConsumer. Must only be called by one thread.
+   * @param consumer the DatagramConsumer
+   * @return the number of datagrams received
+   * @throws IOException if the socket is closed or receiving fails
+   */
+  int receive(@NonNull DatagramConsumer consumer) throws IOException {
+    final Batch batch = receiveBatch;
+    for (int i = 0; i < batch.capacity; i++) {
+      // value-result argument, reset what the previous call changed
+      batch.buffer.putInt(i * MMSGHDR_SIZE + MSG_NAMELEN, SOCKADDR_IN_SIZE);
+    }
+    int received;
+    while (true) {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      try {
+        received = NativeLibC.recvmmsg(fd, batch.address, batch.capacity, MSG_WAITFORONE, 0L);
+        break;
+      } catch (LastErrorException e) {
+        if (e.getErrorCode() != ErrNo.EINTR) {
+          throw NativeLibC.asIOException("recvmmsg", e);
+        }
+      }
+    }
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    receiveCallCounter.incrementAndGet();
+    for (int i = 0; i < received; i++) {
+      final int length = Math.min(batch.buffer.getInt(i * MMSGHDR_SIZE + MSG_LEN), batch.slotSize);
+      final int start = batch.dataPosition(i);
+      receiveView.limit(start + length).position(start);
+      consumer.accept(getSocketAddress(batch.buffer, batch.namePosition(i)), receiveView);
+      receiveView.clear();
+    }
+    receivedCounter.addAndGet(received);
+    return received;
+  }
+
+  /**
+   * Stage a datagram for sending. The datagram is copied, so the caller may re-use the buffer
+   * immediately.
+   * @param datagram a ByteBuffer containing the datagram between position and limit
+   * @param target the address to send to
+   * @throws IOException if the engine is closed
+   */
+  void send(@NonNull ByteBuffer datagram, @NonNull InetSocketAddress target) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+    final int length = datagram.remaining();
+    synchronized (this) {
+      final Batch batch = filling;
+      if (batch.count == batch.capacity || length > batch.slotSize) {
+        droppedCounter.incrementAndGet();
+      } else {
+        final int slot = batch.count++;
+        putSocketAddress(batch.buffer, batch.namePosition(slot), target);
+        batch.buffer.putLong(batch.iovOffset + slot * IOVEC_SIZE + IOV_LEN, length);
+        // all other accesses are absolute, so the position is free for copying
+        batch.buffer.position(batch.dataPosition(slot));
+        batch.buffer.put(datagram);
+        if (slot == 0) {
+          notifyAll();
+        }
+      }
+    }
+    datagram.position(datagram.limit());
+  }
+
+  /**
+   * The sender thread: wait for staged datagrams and send them with as few calls as possible.
+   */
+  private void runSender() {
+    logger.info("Native datagram sender started");
+    try {
+      while (open) {
+        synchronized (this) {
+          while (filling.count == 0 && open) {
+            wait();
+          }
+          Batch staged = filling;
+          filling = draining;
+          draining = staged;
+        }
+        int done = 0;
+        while (done < draining.count) {
+          try {
+            final int sent = NativeLibC.sendmmsg(fd, draining.address + done * MMSGHDR_SIZE, draining.count - done, 0);
+            sendCallCounter.incrementAndGet();
+            sentCounter.addAndGet(sent);
+            done += sent;
+          } catch (LastErrorException e) {
+            if (!open) {
+              return;
+            }
+            if (e.getErrorCode() != ErrNo.EINTR) {
+              // skip the datagram that could not be sent, e.g. for an unreachable destination
+              logger.log(Level.FINE, "sendmmsg failed with errno " + e.getErrorCode());
+              droppedCounter.incrementAndGet();
+              done++;
+            }
+          }
+        }
+        draining.count = 0;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      logger.info("Native datagram sender stopped");
+    }
+  }
+
+  /**
+   * Close the socket, waking up a thread blocked in receive.
+   */
+  void close() {
+    synchronized (this) {
+      if (!open) {
+        return;
+      }
+      open = false;
+      notifyAll();
+    }
+    try {
+      NativeLibC.shutdown(fd, SHUT_RDWR);
+    } catch (LastErrorException e) {
+      // ENOTCONN is expected on an unconnected socket, it wakes up receivers nevertheless
+    }
+    try {
+      NativeLibC.close(fd);
+    } catch (LastErrorException e) {
+      logger.log(Level.WARNING, "Failed to close native socket, errno " + e.getErrorCode());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("native datagram engine: received %d in %d calls, sent %d in %d calls, dropped %d",
+        receivedCounter.get(), receiveCallCounter.get(), sentCounter.get(), sendCallCounter.get(), droppedCounter.get());
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+
+/**
+ * JNA direct mapping of the few libc functions that we need beyond what java.nio offers.
+ * Direct mapping avoids the reflection overhead of interface mapping, which matters on
+ * per-packet paths.
+ * <p>
+ * Pointers are passed as plain longs holding the native address. This is only valid on 64 bit
+ * Linux, which is checked by {@link #checkSupported()}.
+ */
+final class NativeLibC {
+  static {
+    Native.register(Platform.C_LIBRARY_NAME);
+  }
+
+  private NativeLibC() {}
+
+  /**
+   * Verify that this platform is supported by the native helpers.
+   * @throws IllegalStateException if not running on 64 bit Linux.
+   */
+  static void checkSupported() throws IllegalStateException {
+    if (!Platform.isLinux() || Native.POINTER_SIZE != 8) {
+      throw new IllegalStateException("Native I/O is only supported on 64 bit Linux");
+    }
+  }
+
+  /**
+   * Get the native address of a direct ByteBuffer's first byte (not its position).
+   * @param bb a direct ByteBuffer
+   * @return the address as long
+   */
+  static long address(ByteBuffer bb) {
+    if (!bb.isDirect()) {
+      throw new IllegalArgumentException("Native I/O requires a direct buffer");
+    }
+    return Pointer.nativeValue(Native.getDirectBufferPointer(bb));
+  }
+
+  /**
+   * Convert a LastErrorException to an IOException with a readable message.
+   * @param operation a String naming the failed operation
+   * @param e the LastErrorException caught
+   * @return an IOException to throw
+   */
+  static IOException asIOException(String operation, LastErrorException e) {
+    return new IOException(operation + " failed with errno " + e.getErrorCode(), e);
+  }
+
+  static native int open(String path, int flags) throws LastErrorException;
+
+  static native int close(int fd) throws LastErrorException;
+
+  static native int ioctl(int fd, long request, Pointer arg) throws LastErrorException;
+
+  static native long read(int fd, long buf, long count) throws LastErrorException;
+
+  static native long write(int fd, long buf, long count) throws LastErrorException;
+
+  static native int socket(int domain, int type, int protocol) throws LastErrorException;
+
+  static native int setsockopt(int fd, int level, int optname, long optval, int optlen) throws LastErrorException;
+
+  static native int bind(int fd, long addr, int addrlen) throws LastErrorException;
+
+  static native int shutdown(int fd, int how) throws LastErrorException;
+
+  static native int recvmmsg(int fd, long msgvec, int vlen, int flags, long timeout) throws LastErrorException;
+
+  static native int sendmmsg(int fd, long msgvec, int vlen, int flags) throws LastErrorException;
+}
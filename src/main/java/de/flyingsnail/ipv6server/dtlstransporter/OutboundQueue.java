@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.tls.DatagramTransport;
+import org.bouncycastle.tls.TlsFatalAlert;
+import org.bouncycastle.util.encoders.Hex;
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * A bounded queue of IPv6 packets waiting to be sent to one DTLS session. Packets are offered
+ * by the tun reader(s), which therefore never block on a slow client. Whenever packets are
+ * waiting, the queue is in the active list of a {@link DrrScheduler}, whose sender threads drain
+ * it in deficit round robin order with the other active queues; at most one thread serves a
+ * queue at a time, so packets of a session are sent in order, while the queues of different
+ * sessions are drained in parallel.
+ * <p>
+ * If the queue is full, newly offered packets are dropped and counted.
+ */
+class OutboundQueue {
+
+  /**
+   * Per sender thread array to copy packets from direct buffers into, as DTLSTransport only
+   * accepts byte arrays.
+   */
+  private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[0]);
+
+  private final Logger logger = Logger.getLogger(OutboundQueue.class.getName());
+
+  /** The DTLS session's transport; tests may pass any DatagramTransport */
+  private final @NonNull DatagramTransport transport;
+
+  private final @NonNull BufferPool bufferPool;
+
+  private final ArrayBlockingQueue<ByteBuffer> queue;
+
+  /** true while the queue is in the scheduler's active list or being served */
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+  private volatile DrrScheduler scheduler;
+
+  /** Bytes this queue may still send in the current round; only accessed by the serving thread */
+  private int deficit;
+
+  private volatile boolean closed;
+
+  private final AtomicLong enqueuedCounter = new AtomicLong();
+  private final AtomicLong droppedCounter = new AtomicLong();
+  private final AtomicLong sentCounter = new AtomicLong();
+  private final AtomicLong failedCounter = new AtomicLong();
+
+  /**
+   * @param transport the DTLSTransport (or other DatagramTransport) to send the queued packets to
+   * @param capacity the maximum number of packets waiting
+   * @param bufferPool the BufferPool to return the buffers of sent packets to
+   */
+  OutboundQueue(@NonNull DatagramTransport transport, int capacity, @NonNull BufferPool bufferPool) {
+    this.transport = transport;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.bufferPool = bufferPool;
+  }
+
+  /**
+   * Queue a packet for sending. The caller passes ownership of the buffer if, and only if,
+   * the packet was queued; the buffer is returned to the BufferPool after sending, or when the
+   * queue is closed.
+   * @param packet a ByteBuffer containing exactly one IPv6 packet between position and limit
+   * @param scheduler the DrrScheduler to activate this queue with, if not active yet
+   * @return a boolean indicating if the packet was queued; false means it was dropped.
+   */
+  boolean offer(@NonNull ByteBuffer packet, @NonNull DrrScheduler scheduler) {
+    if (closed || !queue.offer(packet)) {
+      droppedCounter.incrementAndGet();
+      return false;
+    }
+    enqueuedCounter.incrementAndGet();
+    if (closed) {
+      // close() may have drained the queue before the packet arrived; nobody else would release it
+      discard();
+      return true;
+    }
+    this.scheduler = scheduler;
+    schedule();
+    return true;
+  }
+
+  /**
+   * Make sure that this queue is in the scheduler's active list.
+   */
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      scheduler.activate(this);
+    }
+  }
+
+  /**
+   * Serve this queue for one round of deficit round robin: add quantum to the deficit and send
+   * packets as long as the deficit covers them. Called by a sender thread of the DrrScheduler.
+   * @param quantum the number of bytes to add to the deficit
+   * @return true if packets are left and the queue must stay in the active list; false if the
+   *         queue left the active list.
+   */
+  boolean serve(int quantum) {
+    boolean more = false;
+    try {
+      deficit += quantum;
+      ByteBuffer packet;
+      while (!closed && (packet = queue.peek()) != null && packet.remaining() <= deficit) {
+        if (queue.poll() != packet) {
+          // close() discarded the queue concurrently
+          break;
+        }
+        deficit -= packet.remaining();
+        send(packet);
+      }
+      more = !closed && !queue.isEmpty();
+    } finally {
+      if (!more) {
+        // an idle queue must not save up deficit for later bursts
+        deficit = 0;
+        scheduled.set(false);
+        // a packet might have been offered after our last poll, but before we reset the flag
+        if (!closed && !queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+          more = true;
+        }
+      }
+    }
+    return more;
+  }
+
+  private void send(ByteBuffer packet) {
+    try {
+      final byte[] array;
+      final int offset;
+      final int length = packet.remaining();
+      if (packet.hasArray()) {
+        array = packet.array();
+        offset = packet.arrayOffset() + packet.position();
+      } else {
+        byte[] copy = scratch.get();
+        if (copy.length < length) {
+          copy = new byte[Math.max(length, bufferPool.getBufferSize())];
+          scratch.set(copy);
+        }
+        packet.get(copy, 0, length);
+        array = copy;
+        offset = 0;
+      }
+      if (logger.isLoggable(Level.FINEST)) {
+        logger.finest("Buffer content: " + new String(Hex.encode(array, offset, length)));
+      }
+      transport.send(array, offset, length);
+      sentCounter.incrementAndGet();
+    } catch (TlsFatalAlert e) {
+      logger.log(Level.WARNING, "Fatal signal from DTLS engine, client session died for " + transport, e);
+      failedCounter.incrementAndGet();
+      // closing the transport terminates the session's handler, which removes the session
+      close();
+      try {
+        transport.close();
+      } catch (IOException e1) {
+        logger.log(Level.FINE, "Closing failed session failed", e1);
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Handling of packet caused IO exception, client session might recover", e);
+      failedCounter.incrementAndGet();
+    } finally {
+      bufferPool.release(packet);
+    }
+  }
+
+  /**
+   * Discard all waiting packets and refuse further ones.
+   */
+  void close() {
+    closed = true;
+    discard();
+  }
+
+  /**
+   * Release the buffers of all waiting packets.
+   */
+  private void discard() {
+    ByteBuffer packet;
+    while ((packet = queue.poll()) != null) {
+      droppedCounter.incrementAndGet();
+      // typically called on a client handler's thread, which ends soon with its cache
+      bufferPool.release(packet, false);
+    }
+  }
+
+  /**
+   * @return the number of packets currently waiting
+   */
+  int getDepth() {
+    return queue.size();
+  }
+
+  /**
+   * @return the number of packets accepted into the queue
+   */
+  long getEnqueuedCount() {
+    return enqueuedCounter.get();
+  }
+
+  /**
+   * @return the number of packets dropped because the queue was full or closed
+   */
+  long getDroppedCount() {
+    return droppedCounter.get();
+  }
+
+  /**
+   * @return the number of packets handed to the DTLS session successfully
+   */
+  long getSentCount() {
+    return sentCounter.get();
+  }
+
+  /**
+   * @return the number of packets that failed to send
+   */
+  long getFailedCount() {
+    return failedCounter.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("queue depth %d, enqueued %d, sent %d, dropped %d, failed %d",
+        getDepth(), getEnqueuedCount(), getSentCount(), getDroppedCount(), getFailedCount());
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * A concurrent routing table mapping IPv6 prefixes to values, with longest prefix match lookup.
+ * <p>
+ * There is one {@link SessionRegistry} per prefix length in use, keyed by the masked network
+ * address. A lookup probes the registries from the longest to the shortest prefix length in use
+ * and returns the first hit. Delegated prefixes come in very few distinct lengths (typically
+ * /128, /64 and /56), so a lookup costs a handful of hash probes independent of the number of
+ * prefixes, and it neither locks nor allocates.
+ * <p>
+ * Updates are serialized on the table's monitor.
+ *
+ * @param <V> the type of the registered values
+ */
+class PrefixTable<V> {
+  /** One registry per prefix length, created on first use */
+  @SuppressWarnings("unchecked")
+  private final SessionRegistry<V>[] byLength = new SessionRegistry[129];
+
+  /** The prefix lengths in use, longest first; replaced as a whole on change */
+  private volatile int[] lengths = new int[0];
+
+  /**
+   * Look up the value of the longest prefix containing an address.
+   * @param high the upper 64 bits of the address
+   * @param low the lower 64 bits of the address
+   * @return the registered value, or null if no prefix contains the address
+   */
+  public @Nullable V get(long high, long low) {
+    for (final int length: lengths) {
+      final V value = byLength[length].get(high & Ipv6Prefix.highMask(length), low & Ipv6Prefix.lowMask(length));
+      if (value != null) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Look up the value of the longest prefix containing an address stored in a ByteBuffer, e.g.
+   * a packet header. This does not alter position or limit of the buffer.
+   * @param bb the ByteBuffer holding the address in network byte order
+   * @param offset the absolute index of the first byte of the address
+   * @return the registered value, or null if no prefix contains the address
+   */
+  public @Nullable V get(@NonNull ByteBuffer bb, int offset) {
+    return get(bb.getLong(offset), bb.getLong(offset + 8));
+  }
+
+  /**
+   * Look up the value registered for exactly this prefix.
+   * @param prefix the Ipv6Prefix
+   * @return the registered value or null
+   */
+  public @Nullable V getExact(@NonNull Ipv6Prefix prefix) {
+    final SessionRegistry<V> registry = byLength[prefix.getLength()];
+    return registry == null ? null : registry.get(prefix.getHigh(), prefix.getLow());
+  }
+
+  /**
+   * Register a value for a prefix, replacing any value previously registered for the same prefix.
+   * @param prefix the Ipv6Prefix
+   * @param value the value to register
+   * @return the previously registered value or null
+   */
+  public synchronized @Nullable V put(@NonNull Ipv6Prefix prefix, @NonNull V value) {
+    SessionRegistry<V> registry = byLength[prefix.getLength()];
+    if (registry == null) {
+      registry = new SessionRegistry<>();
+      byLength[prefix.getLength()] = registry;
+    }
+    final V previous = registry.put(prefix.getHigh(), prefix.getLow(), value);
+    updateLengths();
+    return previous;
+  }
+
+  /**
+   * Remove the value registered for a prefix.
+   * @param prefix the Ipv6Prefix
+   * @param expected if not null, the mapping is only removed if it still maps to this value.
+   * @return the removed value or null if nothing was removed
+   */
+  public synchronized @Nullable V remove(@NonNull Ipv6Prefix prefix, @Nullable V expected) {
+    final SessionRegistry<V> registry = byLength[prefix.getLength()];
+    if (registry == null) {
+      return null;
+    }
+    final V removed = registry.remove(prefix.getHigh(), prefix.getLow(), expected);
+    updateLengths();
+    return removed;
+  }
+
+  /**
+   * Remove all entries.
+   */
+  public synchronized void clear() {
+    for (SessionRegistry<V> registry: byLength) {
+      if (registry != null) {
+        registry.clear();
+      }
+    }
+    updateLengths();
+  }
+
+  /**
+   * Re-compute the list of prefix lengths in use. Caller must hold the monitor.
+   */
+  private void updateLengths() {
+    int count = 0;
+    for (int length = 128; length >= 0; length--) {
+      if (byLength[length] != null && byLength[length].size() > 0) {
+        count++;
+      }
+    }
+    final int[] newLengths = new int[count];
+    int i = 0;
+    for (int length = 128; length >= 0; length--) {
+      if (byLength[length] != null && byLength[length].size() > 0) {
+        newLengths[i++] = length;
+      }
+    }
+    lengths = newLengths;
+  }
+
+  /**
+   * @return the number of registered prefixes
+   */
+  public int size() {
+    int size = 0;
+    for (final int length: lengths) {
+      size += byLength[length].size();
+    }
+    return size;
+  }
+
+  /**
+   * Callback interface for {@link PrefixTable#forEach(EntryConsumer)}.
+   */
+  interface EntryConsumer<V> {
+    void accept(@NonNull Ipv6Prefix prefix, V value);
+  }
+
+  /**
+   * Call consumer for each entry. The iteration is weakly consistent.
+   * @param consumer the EntryConsumer to call
+   */
+  public void forEach(@NonNull EntryConsumer<V> consumer) {
+    for (final int length: lengths) {
+      byLength[length].forEach((long high, long low, V value) -> consumer.accept(new Ipv6Prefix(high, low, length), value));
+    }
+  }
+
+  /**
+   * @return a weakly consistent snapshot of the registered values
+   */
+  public @NonNull Iterable<V> values() {
+    final List<V> values = new ArrayList<>();
+    for (final int length: lengths) {
+      for (V value: byLength[length].values()) {
+        values.add(value);
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+import org.bouncycastle.tls.Certificate;
+import org.bouncycastle.tls.crypto.TlsCertificate;
+import org.bouncycastle.tls.crypto.impl.bc.BcTlsCrypto;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * The process-wide credentials of the DTLS server: crypto provider, certificate chain, private
+ * key and the checker for client chains. Loading and verifying them is costly, so it is done once
+ * at startup, and the immutable result is shared by the {@link IPv6DTlsServer} of every handshake.
+ */
+class ServerCredentials {
+  private static final String[] CERTIFICATE_RESOURCES = new String[]{"dtlsserver.cert", "ca.cert"};
+
+  private static final String KEY_RESOURCE = "dtlsserver.key";
+
+  private static final Logger logger = Logger.getLogger(ServerCredentials.class.getName());
+
+  private final @NonNull BcTlsCrypto crypto;
+
+  private final @NonNull Certificate serverCertChain;
+
+  private final @NonNull TlsCertificate trustedCA;
+
+  private final @NonNull AsymmetricKeyParameter privateKey;
+
+  private final @NonNull ChainChecker chainChecker;
+
+  private ServerCredentials(@NonNull BcTlsCrypto crypto, @NonNull Certificate serverCertChain,
+      @NonNull TlsCertificate trustedCA, @NonNull AsymmetricKeyParameter privateKey,
+      @NonNull ChainChecker chainChecker) {
+    this.crypto = crypto;
+    this.serverCertChain = serverCertChain;
+    this.trustedCA = trustedCA;
+    this.privateKey = privateKey;
+    this.chainChecker = chainChecker;
+  }
+
+  /**
+   * Load the bundled certificate chain and private key, and check that the server would accept
+   * its own certificate.
+   * @param chainCacheSize the maximum number of validated client chains to remember, 0 for none
+   * @param chainCacheTtl the maximum time in milliseconds to remember a validated client chain
+   * @param crlStore the CrlStore to check client certificates against, or null to fetch CRLs from
+   *        the distribution points
+   * @return the ServerCredentials
+   * @throws IllegalStateException if the credentials are missing or do not verify
+   */
+  static @NonNull ServerCredentials load(int chainCacheSize, long chainCacheTtl, @Nullable CrlStore crlStore) {
+    final BcTlsCrypto crypto = new BcTlsCrypto(new SecureRandom());
+    final Certificate serverCertChain;
+    try {
+      serverCertChain = DTLSUtils.loadCertificateChain(crypto, CERTIFICATE_RESOURCES);
+    } catch (IOException e) {
+      throw new IllegalStateException("Incorrectly bundled, failure to read certificates", e);
+    }
+    logger.finer("Certificate chain loaded");
+
+    final TlsCertificate trustedCA = serverCertChain.getCertificateAt(CERTIFICATE_RESOURCES.length-1);
+
+    final AsymmetricKeyParameter privateKey;
+    try {
+      privateKey = DTLSUtils.loadBcPrivateKeyResource(KEY_RESOURCE);
+    } catch (IOException e) {
+      throw new IllegalStateException("Incorrectly bundled, failure to read private key", e);
+    }
+    logger.finer("private key loaded");
+
+    final ChainChecker chainChecker = new ChainChecker(trustedCA, chainCacheSize, chainCacheTtl, crlStore);
+
+    // self-check configuration: we would need to accept our own certificate!
+    try {
+      chainChecker.checkChain(serverCertChain.getCertificateList());
+      logger.finer("Trust chain checked OK");
+    } catch (Exception e) {
+      try {
+        logger.fine("Failed to verify cert chain of server itself:\n"
+            + "\nServer -------\n-----BEGIN CERTIFICATE-----\n"
+            + Base64.getEncoder().encodeToString(serverCertChain.getCertificateAt(0).getEncoded())
+            + "\n-----END CERTIFICATE-----\n"
+            + "\n\nCA -------\n-----BEGIN CERTIFICATE-----\n"
+            + Base64.getEncoder().encodeToString(trustedCA.getEncoded())
+            + "\n-----END CERTIFICATE-----\n"
+            );
+      } catch (IOException e1) {
+        logger.log(Level.WARNING, "Cannot generate diagnostics for mal-configuration", e1);
+      }
+
+      throw new IllegalStateException("I wouldn't even trust myself", e);
+    }
+    logger.info("Server credentials loaded and verified");
+    return new ServerCredentials(crypto, serverCertChain, trustedCA, privateKey, chainChecker);
+  }
+
+  /**
+   * @return the BcTlsCrypto shared by all handshakes
+   */
+  @NonNull BcTlsCrypto getCrypto() {
+    return crypto;
+  }
+
+  /**
+   * @return the certificate chain of the server, ending with the CA
+   */
+  @NonNull Certificate getServerCertChain() {
+    return serverCertChain;
+  }
+
+  /**
+   * @return the certificate of the CA that clients' certificates must be issued by
+   */
+  @NonNull TlsCertificate getTrustedCA() {
+    return trustedCA;
+  }
+
+  /**
+   * @return the private key of the server
+   */
+  @NonNull AsymmetricKeyParameter getPrivateKey() {
+    return privateKey;
+  }
+
+  /**
+   * @return the ChainChecker verifying client certificate chains; safe for concurrent use
+   */
+  @NonNull ChainChecker getChainChecker() {
+    return chainChecker;
+  }
+}
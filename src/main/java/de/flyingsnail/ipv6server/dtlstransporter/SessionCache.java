@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bouncycastle.tls.TlsSession;
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * The DTLS sessions that returning clients may resume with an abbreviated handshake, skipping
+ * the server's signature, the client certificate check and the key exchange. Shared by all
+ * {@link IPv6DTlsServer} instances of a listener.
+ * <p>
+ * Sessions are evicted least recently used first, and expire after a configured time or when the
+ * client certificate expires, whichever is earlier. Resuming does not extend a session's lifetime.
+ */
+class SessionCache {
+  /** Length of the session IDs handed out, the maximum allowed by the protocol */
+  private static final int SESSION_ID_LENGTH = 32;
+
+  /** A session, resumable until validUntil */
+  private static class CachedSession {
+    private final @NonNull TlsSession session;
+    /** Time in milliseconds since the epoch until which the session may be resumed */
+    private final long validUntil;
+
+    private CachedSession(@NonNull TlsSession session, long validUntil) {
+      this.session = session;
+      this.validUntil = validUntil;
+    }
+  }
+
+  private final int capacity;
+
+  /** Maximum time a session may be resumed in milliseconds */
+  private final long ttl;
+
+  /** Sessions by Base64 of their ID, least recently used first; guarded by itself */
+  private final LinkedHashMap<String, CachedSession> sessions;
+
+  private final SecureRandom random = new SecureRandom();
+
+  private final LongAdder hitCounter = new LongAdder();
+
+  private final LongAdder missCounter = new LongAdder();
+
+  /**
+   * @param capacity the maximum number of sessions kept
+   * @param ttl the maximum time in milliseconds that a session may be resumed
+   */
+  SessionCache(int capacity, long ttl) {
+    this.capacity = capacity;
+    this.ttl = ttl;
+    this.sessions = new LinkedHashMap<String, CachedSession>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedSession> eldest) {
+        return size() > SessionCache.this.capacity;
+      }
+    };
+  }
+
+  private static @NonNull String key(byte[] sessionID) {
+    return Base64.getEncoder().encodeToString(sessionID);
+  }
+
+  /**
+   * @return a new random session ID
+   */
+  byte[] newSessionID() {
+    final byte[] sessionID = new byte[SESSION_ID_LENGTH];
+    random.nextBytes(sessionID);
+    return sessionID;
+  }
+
+  /**
+   * Remember a session established by a full handshake. A session already known, i.e. one that
+   * was just resumed, keeps its original lifetime.
+   * @param session the TlsSession
+   * @param expiry the Date when the client certificate expires
+   */
+  void put(@NonNull TlsSession session, @NonNull Date expiry) {
+    final byte[] sessionID = session.getSessionID();
+    if (!session.isResumable() || sessionID == null || sessionID.length == 0) {
+      return;
+    }
+    final long validUntil = Math.min(System.currentTimeMillis() + ttl, expiry.getTime());
+    synchronized (sessions) {
+      sessions.putIfAbsent(key(sessionID), new CachedSession(session, validUntil));
+    }
+  }
+
+  /**
+   * @param sessionID the session ID a client asks to resume
+   * @return the TlsSession to resume, or null if it is unknown, expired or no longer resumable
+   */
+  @Nullable TlsSession get(byte[] sessionID) {
+    final String key = key(sessionID);
+    final CachedSession entry;
+    synchronized (sessions) {
+      entry = sessions.get(key);
+      if (entry != null && (entry.validUntil <= System.currentTimeMillis() || !entry.session.isResumable())) {
+        sessions.remove(key);
+        missCounter.increment();
+        return null;
+      }
+    }
+    if (entry == null) {
+      missCounter.increment();
+      return null;
+    }
+    hitCounter.increment();
+    return entry.session;
+  }
+
+  /**
+   * Forget a session and make it non-resumable, e.g. because the client certificate was revoked.
+   * @param sessionID the ID of the session
+   */
+  void remove(byte[] sessionID) {
+    final CachedSession entry;
+    synchronized (sessions) {
+      entry = sessions.remove(key(sessionID));
+    }
+    if (entry != null) {
+      entry.session.invalidate();
+    }
+  }
+
+  /**
+   * @return the number of sessions kept
+   */
+  int size() {
+    synchronized (sessions) {
+      return sessions.size();
+    }
+  }
+
+  /**
+   * @return the number of session IDs found resumable
+   */
+  long getHitCount() {
+    return hitCounter.sum();
+  }
+
+  /**
+   * @return the number of session IDs not found, expired or no longer resumable
+   */
+  long getMissCount() {
+    return missCounter.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("session cache: sessions %d, resumed %d, missed %d", size(), hitCounter.sum(), missCounter.sum());
+  }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.net.Inet6Address;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * A concurrent hash table mapping 128 bit IPv6 addresses, represented as two primitive longs, to
+ * values. It is an open addressing table with linear probing.
+ * <p>
+ * Lookups never lock and never allocate, which makes them suitable for the per-packet path. Updates
+ * are serialized on the registry's monitor; they only happen when sessions come and go. Iteration
+ * works on the table that was current when the iteration started, i.e. it is weakly consistent.
+ *
+ * @param <V> the type of the registered values
+ */
+class SessionRegistry<V> {
+  /** Initial capacity, must be a power of two */
+  private static final int INITIAL_CAPACITY = 64;
+
+  /**
+   * An immutable table entry. Replacing a mapping always replaces the entry object, so readers
+   * see either the old or the new mapping, never a mix.
+   */
+  private static final class Entry<V> {
+    final long high;
+    final long low;
+    final V value;
+
+    Entry(long high, long low, V value) {
+      this.high = high;
+      this.low = low;
+      this.value = value;
+    }
+  }
+
+  /** Marks a slot whose entry was removed; probing must continue past it. */
+  @SuppressWarnings("rawtypes")
+  private static final Entry TOMBSTONE = new Entry<>(0L, 0L, null);
+
+  /** The current table, replaced as a whole on resize */
+  private volatile AtomicReferenceArray<Entry<V>> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+  /** Number of live entries */
+  private volatile int size;
+
+  /** Number of occupied slots, including tombstones. Guarded by this. */
+  private int used;
+
+  /**
+   * Spread the bits of a 128 bit address (fmix64 of MurmurHash3).
+   */
+  private static int hash(long high, long low) {
+    long h = high ^ Long.rotateLeft(low, 32);
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int)h;
+  }
+
+  /**
+   * Look up the value registered for an address.
+   * @param high the upper 64 bits of the address
+   * @param low the lower 64 bits of the address
+   * @return the registered value, or null if none is registered
+   */
+  public @Nullable V get(long high, long low) {
+    final AtomicReferenceArray<Entry<V>> tab = table;
+    final int mask = tab.length() - 1;
+    int i = hash(high, low) & mask;
+    for (int probes = 0; probes <= mask; probes++) {
+      final Entry<V> e = tab.get(i);
+      if (e == null) {
+        return null;
+      }
+      if (e != TOMBSTONE && e.high == high && e.low == low) {
+        return e.value;
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * Look up the value registered for an address stored in a ByteBuffer, e.g. a packet header.
+   * This does not alter position or limit of the buffer. The buffer is expected to have network
+   * (big endian) byte order, which is the default of all ByteBuffers.
+   * @param bb the ByteBuffer holding the address
+   * @param offset the absolute index of the first byte of the address
+   * @return the registered value, or null if none is registered
+   */
+  public @Nullable V get(@NonNull ByteBuffer bb, int offset) {
+    return get(bb.getLong(offset), bb.getLong(offset + 8));
+  }
+
+  /**
+   * @param address the Inet6Address to look up
+   * @return the registered value, or null if none is registered
+   */
+  public @Nullable V get(@NonNull Inet6Address address) {
+    final byte[] raw = address.getAddress();
+    return get(high(raw), low(raw));
+  }
+
+  /**
+   * Register a value for an address, replacing any previously registered value.
+   * @param high the upper 64 bits of the address
+   * @param low the lower 64 bits of the address
+   * @param value the value to register
+   * @return the previously registered value or null
+   */
+  public synchronized @Nullable V put(long high, long low, @NonNull V value) {
+    if ((used + 1) * 2 > table.length()) {
+      rehash();
+    }
+    final AtomicReferenceArray<Entry<V>> tab = table;
+    final int mask = tab.length() - 1;
+    int i = hash(high, low) & mask;
+    int freeSlot = -1;
+    while (true) {
+      final Entry<V> e = tab.get(i);
+      if (e == null) {
+        break;
+      }
+      if (e == TOMBSTONE) {
+        if (freeSlot < 0) {
+          freeSlot = i;
+        }
+      } else if (e.high == high && e.low == low) {
+        tab.set(i, new Entry<>(high, low, value));
+        return e.value;
+      }
+      i = (i + 1) & mask;
+    }
+    if (freeSlot >= 0) {
+      // re-using a tombstone does not increase the number of used slots
+      tab.set(freeSlot, new Entry<>(high, low, value));
+    } else {
+      tab.set(i, new Entry<>(high, low, value));
+      used++;
+    }
+    size++;
+    return null;
+  }
+
+  /**
+   * @see #put(long, long, Object)
+   */
+  public @Nullable V put(@NonNull Inet6Address address, @NonNull V value) {
+    final byte[] raw = address.getAddress();
+    return put(high(raw), low(raw), value);
+  }
+
+  /**
+   * Remove the value registered for an address.
+   * @param high the upper 64 bits of the address
+   * @param low the lower 64 bits of the address
+   * @param expected if not null, the mapping is only removed if it still maps to this value.
+   * @return the removed value or null if nothing was removed
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized @Nullable V remove(long high, long low, @Nullable V expected) {
+    final AtomicReferenceArray<Entry<V>> tab = table;
+    final int mask = tab.length() - 1;
+    int i = hash(high, low) & mask;
+    while (true) {
+      final Entry<V> e = tab.get(i);
+      if (e == null) {
+        return null;
+      }
+      if (e != TOMBSTONE && e.high == high && e.low == low) {
+        if (expected != null && e.value != expected) {
+          return null;
+        }
+        tab.set(i, TOMBSTONE);
+        size--;
+        return e.value;
+      }
+      i = (i + 1) & mask;
+    }
+  }
+
+  /**
+   * @see #remove(long, long, Object)
+   */
+  public @Nullable V remove(@NonNull Inet6Address address, @Nullable V expected) {
+    final byte[] raw = address.getAddress();
+    return remove(high(raw), low(raw), expected);
+  }
+
+  /**
+   * Remove all entries.
+   */
+  public synchronized void clear() {
+    table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    size = 0;
+    used = 0;
+  }
+
+  /**
+   * @return the number of registered values
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Build a new table, sized for the live entries, and publish it. Tombstones are dropped.
+   * Caller must hold the monitor.
+   */
+  private void rehash() {
+    final AtomicReferenceArray<Entry<V>> old = table;
+    int capacity = INITIAL_CAPACITY;
+    while ((size + 1) * 4 > capacity) {
+      capacity <<= 1;
+    }
+    final AtomicReferenceArray<Entry<V>> tab = new AtomicReferenceArray<>(capacity);
+    final int mask = capacity - 1;
+    for (int j = 0; j < old.length(); j++) {
+      final Entry<V> e = old.get(j);
+      if (e != null && e != TOMBSTONE) {
+        int i = hash(e.high, e.low) & mask;
+        while (tab.get(i) != null) {
+          i = (i + 1) & mask;
+        }
+        tab.set(i, e);
+      }
+    }
+    used = size;
+    table = tab;
+  }
+
+  /**
+   * Callback interface for {@link SessionRegistry#forEach(EntryConsumer)}.
+   */
+  interface EntryConsumer<V> {
+    void accept(long high, long low, V value);
+  }
+
+  /**
+   * Call consumer for each entry of the table current at the time of the call.
+   * @param consumer the EntryConsumer to call
+   */
+  public void forEach(@NonNull EntryConsumer<V> consumer) {
+    final AtomicReferenceArray<Entry<V>> tab = table;
+    for (int i = 0; i < tab.length(); i++) {
+      final Entry<V> e = tab.get(i);
+      if (e != null && e != TOMBSTONE) {
+        consumer.accept(e.high, e.low, e.value);
+      }
+    }
+  }
+
+  /**
+   * @return a weakly consistent Iterable over the registered values
+   */
+  public @NonNull Iterable<V> values() {
+    return () -> new Iterator<V>() {
+      private final AtomicReferenceArray<Entry<V>> tab = table;
+      private int index = 0;
+      private Entry<V> next = advance();
+
+      private Entry<V> advance() {
+        while (index < tab.length()) {
+          final Entry<V> e = tab.get(index++);
+          if (e != null && e != TOMBSTONE) {
+            return e;
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public V next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        final V value = next.value;
+        next = advance();
+        return value;
+      }
+    };
+  }
+
+  /**
+   * @param raw a 16 byte IPv6 address in network byte order
+   * @return the upper 64 bits
+   */
+  static long high(byte[] raw) {
+    return ByteBuffer.wrap(raw).getLong(0);
+  }
+
+  /**
+   * @param raw a 16 byte IPv6 address in network byte order
+   * @return the lower 64 bits
+   */
+  static long low(byte[] raw) {
+    return ByteBuffer.wrap(raw).getLong(8);
+  }
+
+  /**
+   * Reconstruct an Inet6Address from its primitive representation, e.g. for logging.
+   * @param high the upper 64 bits of the address
+   * @param low the lower 64 bits of the address
+   * @return the corresponding Inet6Address
+   */
+  static @NonNull Inet6Address toInet6Address(long high, long low) {
+    final byte[] raw = new byte[16];
+    ByteBuffer.wrap(raw).putLong(high).putLong(low);
+    try {
+      return Inet6Address.getByAddress(null, raw, -1);
+    } catch (UnknownHostException e) {
+      // cannot happen with 16 bytes
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * A single producer, single consumer ring buffer of packets in a memory mapped file, for passing
+ * packets to another process on the same host without system calls.
+ * <p>
+ * The file starts with a header holding a magic number, the capacity, and the write and read
+ * positions, each on its own cache line. Positions are ever increasing byte counts; they are
+ * published with release semantics and read with acquire semantics, which orders the packet data
+ * written before them. Each packet is stored as its length (4 byte integer) followed by the
+ * packet, padded to a multiple of 8 bytes. A length of -1 tells the consumer that the rest up to
+ * the end of the data area is unused and the next packet starts at its beginning.
+ * <p>
+ * The producer never blocks: a packet that does not fit is dropped and counted. The consumer
+ * waits without futex or signal, by spinning for a short while and then parking, re-checking the
+ * write position in between. The park interval starts short and grows while the ring stays idle,
+ * so that an idle consumer wakes a few hundred times a second rather than thousands.
+ * <p>
+ * The producer side is guarded by the ring's monitor, so several threads may write; there must
+ * be only one consumer.
+ */
+class SharedMemoryRing implements WritableByteChannel {
+  private static final int MAGIC = 0x49503652; // "IP6R"
+  private static final int MAGIC_OFFSET = 0;
+  private static final int CAPACITY_OFFSET = 8;
+  private static final int WRITE_POSITION_OFFSET = 64;
+  private static final int READ_POSITION_OFFSET = 128;
+  private static final int DATA_OFFSET = 192;
+  private static final int PADDING_MARKER = -1;
+
+  /** Iterations of busy waiting before the consumer starts to park */
+  private static final int SPIN_LIMIT = 2000;
+  /** Time the consumer parks between checks once spinning is over, doubled while idle */
+  private static final long PARK_NANOS_MIN = TimeUnit.MICROSECONDS.toNanos(50);
+  /** Longest time the consumer parks between checks */
+  private static final long PARK_NANOS_MAX = TimeUnit.MILLISECONDS.toNanos(4);
+
+  private static final VarHandle LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+  private static final VarHandle INT_VIEW = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+  /** The mapped file; null once closed, it is unmapped by the garbage collector when the last user lets go */
+  private volatile MappedByteBuffer mapped;
+  private final int capacity;
+  private final int mask;
+
+  /** The producer's or consumer's own position, cached locally */
+  private long position;
+
+  private volatile boolean open = true;
+
+  /** The thread waiting for data, woken up on close */
+  private volatile Thread consumer;
+
+  private final AtomicLong packetCounter = new AtomicLong();
+  private final AtomicLong droppedCounter = new AtomicLong();
+  private final AtomicLong parkCounter = new AtomicLong();
+
+  private SharedMemoryRing(MappedByteBuffer mapped, int capacity) {
+    this.mapped = mapped;
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+  }
+
+  /**
+   * Create the ring as its producer. An existing file is overwritten.
+   * @param file the Path of the file to map
+   * @param capacity the size of the data area in bytes, a power of two
+   * @return the SharedMemoryRing to write packets to
+   * @throws IOException if the file cannot be mapped
+   */
+  static @NonNull SharedMemoryRing create(@NonNull Path file, int capacity) throws IOException {
+    if (Integer.bitCount(capacity) != 1 || capacity < 2 * FramedPipeReader.MAX_FRAME_LENGTH) {
+      throw new IllegalArgumentException("Ring capacity must be a power of two and hold at least two packets");
+    }
+    final MappedByteBuffer mapped;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      mapped = channel.map(MapMode.READ_WRITE, 0, DATA_OFFSET + capacity);
+    }
+    mapped.putLong(CAPACITY_OFFSET, capacity);
+    LONG_VIEW.setRelease(mapped, WRITE_POSITION_OFFSET, 0L);
+    LONG_VIEW.setRelease(mapped, READ_POSITION_OFFSET, 0L);
+    // the magic number published last tells the consumer that the header is valid
+    INT_VIEW.setRelease(mapped, MAGIC_OFFSET, MAGIC);
+    return new SharedMemoryRing(mapped, capacity);
+  }
+
+  /**
+   * Attach to a ring as its consumer, waiting until the producer has created it.
+   * @param file the Path of the file to map
+   * @return the SharedMemoryRing to read packets from
+   * @throws IOException if the file cannot be mapped
+   * @throws InterruptedException if interrupted while waiting for the producer
+   */
+  static @NonNull SharedMemoryRing attach(@NonNull Path file) throws IOException, InterruptedException {
+    while (true) {
+      if (file.toFile().length() > DATA_OFFSET) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+          final MappedByteBuffer mapped = channel.map(MapMode.READ_WRITE, 0, channel.size());
+          if ((int)INT_VIEW.getAcquire(mapped, MAGIC_OFFSET) == MAGIC) {
+            final int capacity = (int)mapped.getLong(CAPACITY_OFFSET);
+            if (channel.size() < DATA_OFFSET + capacity) {
+              throw new IOException("Shared memory ring file " + file + " is truncated");
+            }
+            SharedMemoryRing ring = new SharedMemoryRing(mapped, capacity);
+            ring.position = (long)LONG_VIEW.getAcquire(mapped, READ_POSITION_OFFSET);
+            return ring;
+          }
+        }
+      }
+      Thread.sleep(100L);
+    }
+  }
+
+  private static int recordLength(int packetLength) {
+    return (4 + packetLength + 7) & ~7;
+  }
+
+  /**
+   * Append a packet to the ring. The packet is copied, so the caller may re-use the buffer
+   * immediately.
+   * @param src a ByteBuffer containing exactly one packet between position and limit
+   * @return the number of bytes consumed from src, which is all of them even if the packet was dropped
+   */
+  @Override
+  public synchronized int write(ByteBuffer src) throws IOException {
+    final MappedByteBuffer mapped = this.mapped;
+    if (mapped == null) {
+      throw new ClosedChannelException();
+    }
+    final int length = src.remaining();
+    final int record = recordLength(length);
+    final long readPosition = (long)LONG_VIEW.getAcquire(mapped, READ_POSITION_OFFSET);
+    long writePosition = position;
+    int index = (int)(writePosition & mask);
+    final int toEnd = capacity - index;
+    final int needed = record > toEnd ? toEnd + record : record;
+    if (writePosition + needed - readPosition > capacity) {
+      droppedCounter.incrementAndGet();
+      src.position(src.limit());
+      return length;
+    }
+    if (record > toEnd) {
+      mapped.putInt(DATA_OFFSET + index, PADDING_MARKER);
+      writePosition += toEnd;
+      index = 0;
+    }
+    mapped.putInt(DATA_OFFSET + index, length);
+    final ByteBuffer target = mapped.duplicate();
+    target.position(DATA_OFFSET + index + 4);
+    target.put(src);
+    position = writePosition + record;
+    LONG_VIEW.setRelease(mapped, WRITE_POSITION_OFFSET, position);
+    packetCounter.incrementAndGet();
+    return length;
+  }
+
+  /**
+   * Wait for packets and pass each to the BufferWriter, straight from the shared memory.
+   * @param out the BufferWriter to pass packets to. It receives a buffer containing exactly one
+   *        packet between position and limit, which is only valid during the call.
+   * @return the number of packets passed
+   * @throws ClosedChannelException if the ring is closed, and all packets written before are passed
+   * @throws IOException if the BufferWriter fails or the ring is corrupt
+   * @throws InterruptedException if interrupted while waiting
+   */
+  int readPackets(@NonNull BufferWriter out) throws IOException, InterruptedException {
+    final MappedByteBuffer mapped = this.mapped;
+    if (mapped == null) {
+      throw new ClosedChannelException();
+    }
+    long writePosition = awaitData(mapped);
+    final ByteBuffer view = mapped.duplicate();
+    int packets = 0;
+    while (position < writePosition) {
+      final int index = (int)(position & mask);
+      final int length = mapped.getInt(DATA_OFFSET + index);
+      if (length == PADDING_MARKER) {
+        position += capacity - index;
+        continue;
+      }
+      if (length < 0 || length > capacity - index - 4) {
+        throw new IOException("Corrupt shared memory ring, packet length " + length);
+      }
+      view.limit(DATA_OFFSET + index + 4 + length).position(DATA_OFFSET + index + 4);
+      out.write(view);
+      view.clear();
+      position += recordLength(length);
+      packets++;
+    }
+    LONG_VIEW.setRelease(mapped, READ_POSITION_OFFSET, position);
+    packetCounter.addAndGet(packets);
+    return packets;
+  }
+
+  /**
+   * Spin, then park for growing intervals, until the producer has written beyond our read position.
+   * @param mapped the mapped file
+   * @return the producer's write position
+   * @throws ClosedChannelException if the ring is closed while waiting
+   */
+  private long awaitData(MappedByteBuffer mapped) throws InterruptedException, ClosedChannelException {
+    consumer = Thread.currentThread();
+    int spins = 0;
+    long parkNanos = PARK_NANOS_MIN;
+    while (true) {
+      final long writePosition = (long)LONG_VIEW.getAcquire(mapped, WRITE_POSITION_OFFSET);
+      if (writePosition != position) {
+        return writePosition;
+      }
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      if (spins < SPIN_LIMIT) {
+        spins++;
+        Thread.onSpinWait();
+      } else {
+        LockSupport.parkNanos(parkNanos);
+        parkCounter.incrementAndGet();
+        parkNanos = Math.min(2 * parkNanos, PARK_NANOS_MAX);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Close the ring: further writes fail, and a consumer waiting in readPackets returns with
+   * ClosedChannelException. The mapping is released as soon as no read is in progress any more.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      open = false;
+      mapped = null;
+    }
+    final Thread waiting = consumer;
+    if (waiting != null) {
+      LockSupport.unpark(waiting);
+    }
+  }
+
+  /**
+   * @return the number of times the consumer parked waiting for data
+   */
+  long getParkCount() {
+    return parkCounter.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("shared memory ring: packets %d, dropped %d, consumer parked %d times",
+        packetCounter.get(), droppedCounter.get(), parkCounter.get());
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket limiting the byte rate of a packet flow. Packets exceeding the rate
+ * are rejected, i.e. the flow is policed.
+ * <p>
+ * Instead of a token count that needs refilling, the bucket keeps the theoretical arrival time of
+ * the next packet (generic cell rate algorithm). Each packet pushes it forward by the time its
+ * bytes take at the configured rate. A packet conforms if the theoretical arrival time then runs
+ * ahead of the clock by no more than the burst size. A packet costs one read of the clock and one
+ * compare-and-set.
+ */
+class TokenBucket {
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+  /** bytes per second */
+  private final long rate;
+
+  /** maximum burst in bytes */
+  private final long burst;
+
+  /** how far the theoretical arrival time may run ahead of the clock, in nanoseconds */
+  private final long tolerance;
+
+  /** theoretical arrival time of the next packet, in System.nanoTime() */
+  private final AtomicLong theoreticalArrival;
+
+  private final AtomicLong droppedCounter = new AtomicLong();
+
+  /**
+   * @param rate the sustained rate in bytes per second, must be positive
+   * @param burst the maximum burst in bytes, should be at least the size of the largest packet
+   */
+  TokenBucket(long rate, long burst) {
+    if (rate <= 0 || burst <= 0) {
+      throw new IllegalArgumentException("Rate and burst of a token bucket must be positive");
+    }
+    this.rate = rate;
+    this.burst = burst;
+    this.tolerance = burst * NANOS_PER_SECOND / rate;
+    this.theoreticalArrival = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * Take the tokens for a packet, if available.
+   * @param bytes the size of the packet
+   * @return true if the packet conforms to the rate and may be passed
+   */
+  boolean tryConsume(int bytes) {
+    final long now = System.nanoTime();
+    final long cost = bytes * NANOS_PER_SECOND / rate;
+    while (true) {
+      final long tat = theoreticalArrival.get();
+      final long next = (tat - now > 0 ? tat : now) + cost;
+      if (next - now > tolerance) {
+        droppedCounter.incrementAndGet();
+        return false;
+      }
+      if (theoreticalArrival.compareAndSet(tat, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @return the rate in bytes per second
+   */
+  long getRate() {
+    return rate;
+  }
+
+  /**
+   * @return the burst size in bytes
+   */
+  long getBurst() {
+    return burst;
+  }
+
+  /**
+   * @return the number of packets rejected
+   */
+  long getDroppedCount() {
+    return droppedCounter.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d B/s, dropped %d", rate, getDroppedCount());
+  }
+}
@@ -31,4 +31,13 @@ class TransporterParams {
     public int heartbeat;
     public String privateKey;
     public List<String> certChain;
+    public boolean channelMode;
+    public boolean virtualThreads;
+    public int mmsgBatch;
+    public int listenerThreads;
+    public int chainCacheSize;
+    public long chainCacheTtlMs;
+    public CrlStore crlStore;
+    public int sessionCacheSize;
+    public long sessionCacheTtlMs;
 }
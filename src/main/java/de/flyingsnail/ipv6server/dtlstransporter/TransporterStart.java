@@ -24,10 +24,13 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigInteger;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
@@ -35,7 +38,10 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.rmi.NoSuchObjectException;
 import java.security.Security;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.logging.Level;
@@ -45,6 +51,7 @@ import java.util.logging.Logger;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.tls.DTLSTransport;
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 
 import sun.misc.Signal;
 
@@ -81,8 +88,152 @@ public class TransporterStart implements DTLSData {
    * */
   private static Long expiryPeriod;
 
-  /** Regitry of IPv6 addresses towards DTLS sessions */
-  private HashMap<Inet6Address, ServerTransportTupel> dtlsHash;
+  /**
+   * Demultiplex all clients from one shared DatagramChannel in user space, instead of binding a
+   * connected DatagramSocket per client.
+   */
+  private static boolean channelListener;
+
+  /**
+   * Number of datagrams moved per recvmmsg/sendmmsg call by the native datagram engine in
+   * channel mode, 0 to use a DatagramChannel instead
+   */
+  private static int mmsgBatch;
+
+  /** Number of listening sockets and threads, sharing the port by SO_REUSEPORT */
+  private static int listenerThreads;
+
+  /** Idle time after which a client handler releases its thread, in channel mode only */
+  private static long hibernateIdleMs;
+
+  /** Run DTLS handshakes and client handlers on virtual threads */
+  private static boolean virtualHandlerThreads;
+
+  /** Maximum number of validated client certificate chains remembered */
+  private static int chainCacheSize;
+
+  /** Maximum time a validated client certificate chain is remembered, in milliseconds */
+  private static long chainCacheTtlMs;
+
+  /** File or directory of the CRLs to check client certificates against, null to fetch them from the distribution points */
+  private static Path crlPath;
+
+  /** Interval of checks for changed CRL files, in milliseconds */
+  private static long crlRefreshMs;
+
+  /** Maximum number of DTLS sessions kept for resumption */
+  private static int sessionCacheSize;
+
+  /** Maximum time a DTLS session may be resumed, in milliseconds */
+  private static long sessionCacheTtlMs;
+
+  /** Name of the tun device to route IPv6 traffic through */
+  private static final String TUN_DEVICE = "tun0";
+
+  /**
+   * Number of queues to attach to the tun device. 1 uses a single queue tun device,
+   * more than 1 requires a multi_queue tun device and runs one reader per queue.
+   */
+  private static int tunQueues;
+
+  /** Maximum number of packets waiting to be sent to a single session */
+  private static int sessionQueueLength;
+
+  /** Number of threads encrypting and sending packets to the DTLS sessions */
+  private static int senderThreads;
+
+  /**
+   * Use length prefixed frames on the pipes to and from the ayiya transporter, instead of relying
+   * on one read or write per packet. Both transporters must agree on this.
+   */
+  private static boolean framedPipes;
+
+  /** Size of the batches read from and written to the pipes with framing */
+  private static final int PIPE_BUFFER_SIZE = 256 * 1024;
+
+  /**
+   * Pass packets to and from the ayiya transporter through shared memory rings instead of the
+   * named pipes. Both transporters must agree on this.
+   */
+  private static boolean sharedMemoryPassThrough;
+
+  /** Interval of DTLS heartbeats in milliseconds, also the longest time a handler hibernates */
+  private static final int HEARTBEAT_MS = 10*60*1000;
+
+  /** Suffix appended to the named pipes' paths to name the shared memory rings */
+  private static final String RING_SUFFIX = ".ring";
+
+  /** Size of the data area of each shared memory ring in bytes */
+  private static int shmRingSize;
+
+  /** Bytes a tunnel may send per deficit round robin round */
+  private static int drrQuantum;
+
+  /** Maximum number of free receive buffers of client handlers kept for re-use */
+  private static int receiveBufferPoolSize;
+
+  /** Maximum number of packets waiting for the tun writer thread */
+  private static int tunWriteQueueLength;
+
+  /** Size of the buffers that packets from the tun device are read into */
+  private static int tunBufferSize;
+
+  /** Maximum number of free tun buffers kept for re-use */
+  private static int tunBufferPoolSize;
+
+  /** Maximum number of tun buffers allocated, 0 for unlimited */
+  private static long tunBufferLimit;
+
+  /** Source address of generated ICMPv6 error messages, null to use ::1 in the destination's /64 */
+  private static Inet6Address icmpSourceAddress;
+
+  /** Minimum interval between two ICMPv6 error messages to the same destination in milliseconds */
+  private static long icmpMinIntervalMs;
+
+  /** Maximum number of ICMPv6 error messages per second */
+  private static int icmpRateLimit;
+
+  /** Time in milliseconds that a destination without session is remembered as unknown */
+  private static long unknownDestinationTtlMs;
+
+  /** Prefix of configuration keys overriding the rate limits for a client certificate's serial number */
+  private static final String RATE_LIMIT_OVERRIDE_PREFIX = "rate_limit.";
+
+  /** Default rate limit of packets from a client in bytes per second, 0 for unlimited */
+  private static long upstreamRateLimit;
+
+  /** Default rate limit of packets to a client in bytes per second, 0 for unlimited */
+  private static long downstreamRateLimit;
+
+  /** Burst size of the rate limits in bytes */
+  private static long rateLimitBurst;
+
+  /** Rate limits per client certificate serial number, as {upstream, downstream} */
+  private static Map<BigInteger, long[]> rateLimitOverrides;
+
+  /** Routing table of IPv6 prefixes towards DTLS sessions */
+  private final PrefixTable<ServerTransportTupel> dtlsHash;
+
+  /** Buffers for packets read from the tun device, handed over to the sessions' OutboundQueue */
+  private final BufferPool tunBufferPool;
+
+  /**
+   * Heap buffers that client handlers receive decrypted packets into. Handlers may run on short
+   * living threads, so there is no thread cache.
+   */
+  private final BufferPool receiveBufferPool;
+
+  /** Generator of ICMPv6 error messages for packets from the tun device that cannot be forwarded */
+  private final IcmpResponder icmpResponder;
+
+  /** Writes the packets of all clients and of the back pass to the tun device, set by run() */
+  private TunWriter tunWriter;
+
+  /** Checks and counts the packets received from the clients */
+  private final UpstreamValidator upstreamValidator = new UpstreamValidator();
+
+  /** The local CRLs, null if not configured */
+  private final CrlStore crlStore;
 
   private DTLSListener dtlsListener;
 
@@ -90,6 +241,9 @@ public class TransporterStart implements DTLSData {
   
   private ReadableByteChannel fromAyiya;
 
+  /** The shared memory ring to read packets from the ayiya transporter from, if configured */
+  private Path fromAyiyaRing;
+
   
   private static Logger logger = Logger.getLogger(TransporterStart.class.getName());
 
@@ -154,7 +308,10 @@ public class TransporterStart implements DTLSData {
       
       // register BouncyCastle provider
       Security.addProvider(new BouncyCastleProvider());
-      System.setProperty("org.bouncycastle.x509.enableCRLDP", "true");
+      if (crlPath == null) {
+        // without local CRLs, fetch them from the distribution points named in the certificates
+        System.setProperty("org.bouncycastle.x509.enableCRLDP", "true");
+      }
 
       // construct our instance      
       TransporterStart ts = passThrough ? new TransporterStart(input, output) : new TransporterStart();
@@ -165,21 +322,27 @@ public class TransporterStart implements DTLSData {
           logger.log(Level.INFO, "Catched signal USR2, printing tunnel info");
           long count = ts.activeTunnelCount();
           logger.log(Level.INFO, "Connected tunnels count: " + count);
-          ts.dtlsHash.forEach((Inet6Address ipv6, ServerTransportTupel serverTransport) 
+          logger.log(Level.INFO, ts.icmpResponder.toString());
+          logger.log(Level.INFO, ts.upstreamValidator.toString());
+          logger.log(Level.INFO, ts.dtlsListener.getCredentials().getChainChecker().toString());
+          if (ts.crlStore != null)
+            logger.log(Level.INFO, ts.crlStore.toString());
+          if (ts.dtlsListener.getSessionCache() != null)
+            logger.log(Level.INFO, ts.dtlsListener.getSessionCache().toString());
+          logger.log(Level.INFO, ts.tunBufferPool.toString());
+          logger.log(Level.INFO, ts.receiveBufferPool.toString());
+          if (ts.tunWriter != null)
+            logger.log(Level.INFO, ts.tunWriter.toString());
+          ts.dtlsHash.forEach((Ipv6Prefix prefix, ServerTransportTupel serverTransport) 
               -> logger.log(Level.INFO, 
-                            String.format(" %s <-> %s", serverTransport.getTransport().toString(), ipv6.toString())
+                            String.format(" %s <-> %s, %s", serverTransport.getTransport().toString(), 
+                                prefix.toString(),
+                                serverTransport.toString())
                   )
               );
         }
       );
       
-      // provoke check of certificate chain by constructing an otherwise unused server instance
-      //MySecurityManager secManager = new MySecurityManager();
-      //System.setSecurityManager(secManager);
-      logger.finest("Trying to construct an IPv6DTlsServer");
-      final IPv6DTlsServer server = new IPv6DTlsServer(1000);
-      logger.finer(()->"Construction of IPv6DTlsServer succeeded: " + server);
-      
       // now run until something terminal happens
       int exitCode = ts.run();
       logger.info("Transport server main loop exited with result " + exitCode);
@@ -225,6 +388,152 @@ public class TransporterStart implements DTLSData {
     if (expiryPeriodString == null || "".equals(expiryPeriodString))
       throw new IllegalStateException ("No expiryPeriod configured");
     expiryPeriod = Long.valueOf(expiryPeriodString);
+
+    String listenerMode = config.getProperty("listener_mode", "socket");
+    if ("channel".equals(listenerMode))
+      channelListener = true;
+    else if ("socket".equals(listenerMode))
+      channelListener = false;
+    else
+      throw new IllegalStateException ("listener_mode must be socket or channel");
+    logger.config(() -> "listener mode: " + listenerMode);
+    mmsgBatch = Integer.valueOf(config.getProperty("mmsg_batch", "0"));
+    if (mmsgBatch < 0 || mmsgBatch > 1024)
+      throw new IllegalStateException ("mmsg_batch must be between 0 and 1024");
+    if (mmsgBatch > 0 && !channelListener)
+      throw new IllegalStateException ("mmsg_batch requires listener_mode channel");
+
+    listenerThreads = Integer.valueOf(config.getProperty("listener_threads", "1"));
+    if (listenerThreads < 0)
+      throw new IllegalStateException ("listener_threads must not be negative");
+    if (listenerThreads == 0)
+      listenerThreads = Runtime.getRuntime().availableProcessors();
+    logger.config(() -> "listener threads: " + listenerThreads);
+
+    hibernateIdleMs = Long.valueOf(config.getProperty("hibernate_idle_ms", "300000"));
+    if (hibernateIdleMs < 0)
+      throw new IllegalStateException ("hibernate_idle_ms must not be negative");
+
+    String handlerThreads = config.getProperty("handler_threads", "platform");
+    if ("virtual".equals(handlerThreads))
+      virtualHandlerThreads = true;
+    else if ("platform".equals(handlerThreads))
+      virtualHandlerThreads = false;
+    else
+      throw new IllegalStateException ("handler_threads must be platform or virtual");
+    if (virtualHandlerThreads && !HandlerThreads.isVirtualSupported())
+      throw new IllegalStateException ("handler_threads virtual requires Java 21 or later");
+    logger.config(() -> "handler threads: " + handlerThreads);
+
+    chainCacheSize = Integer.valueOf(config.getProperty("chain_cache_size", "1024"));
+    if (chainCacheSize < 0)
+      throw new IllegalStateException ("chain_cache_size must not be negative");
+    chainCacheTtlMs = Long.valueOf(config.getProperty("chain_cache_ttl_ms", "3600000"));
+    if (chainCacheTtlMs < 0)
+      throw new IllegalStateException ("chain_cache_ttl_ms must not be negative");
+
+    String crl = config.getProperty("crl_path");
+    if (crl == null || "".equals(crl)) {
+      crlPath = null;
+    } else {
+      crlPath = Path.of(crl);
+    }
+    crlRefreshMs = Long.valueOf(config.getProperty("crl_refresh_ms", "300000"));
+    if (crlRefreshMs < 1)
+      throw new IllegalStateException ("crl_refresh_ms must be positive");
+
+    sessionCacheSize = Integer.valueOf(config.getProperty("session_cache_size", "4096"));
+    if (sessionCacheSize < 0)
+      throw new IllegalStateException ("session_cache_size must not be negative");
+    sessionCacheTtlMs = Long.valueOf(config.getProperty("session_cache_ttl_ms", "3600000"));
+    if (sessionCacheTtlMs < 0)
+      throw new IllegalStateException ("session_cache_ttl_ms must not be negative");
+
+    tunQueues = Integer.valueOf(config.getProperty("tun_queues", "1"));
+    if (tunQueues < 1)
+      throw new IllegalStateException ("tun_queues must be at least 1");
+    logger.config(() -> "tun queues: " + tunQueues);
+
+    sessionQueueLength = Integer.valueOf(config.getProperty("session_queue_length", "256"));
+    if (sessionQueueLength < 1)
+      throw new IllegalStateException ("session_queue_length must be at least 1");
+
+    senderThreads = Integer.valueOf(config.getProperty("sender_threads", "0"));
+    if (senderThreads < 0)
+      throw new IllegalStateException ("sender_threads must not be negative");
+    if (senderThreads == 0)
+      senderThreads = Runtime.getRuntime().availableProcessors();
+    logger.config(() -> "sender threads: " + senderThreads);
+
+    String pipeFraming = config.getProperty("pipe_framing", "raw");
+    if ("length".equals(pipeFraming))
+      framedPipes = true;
+    else if ("raw".equals(pipeFraming))
+      framedPipes = false;
+    else
+      throw new IllegalStateException ("pipe_framing must be raw or length");
+
+    String passThrough = config.getProperty("pass_through", "pipe");
+    if ("shm".equals(passThrough))
+      sharedMemoryPassThrough = true;
+    else if ("pipe".equals(passThrough))
+      sharedMemoryPassThrough = false;
+    else
+      throw new IllegalStateException ("pass_through must be pipe or shm");
+    shmRingSize = Integer.valueOf(config.getProperty("shm_ring_size", "4194304"));
+    if (Integer.bitCount(shmRingSize) != 1 || shmRingSize < 262144)
+      throw new IllegalStateException ("shm_ring_size must be a power of two of at least 262144");
+
+    drrQuantum = Integer.valueOf(config.getProperty("drr_quantum", "4096"));
+    if (drrQuantum < 1)
+      throw new IllegalStateException ("drr_quantum must be positive");
+
+    tunBufferSize = Integer.valueOf(config.getProperty("tun_buffer_size", "2048"));
+    if (tunBufferSize < IPv6InputHandler.IPV6PACKET_HEADER_LENGTH)
+      throw new IllegalStateException ("tun_buffer_size is too small for an IPv6 packet");
+    tunBufferPoolSize = Integer.valueOf(config.getProperty("tun_buffer_pool_size", "4096"));
+    tunBufferLimit = Long.valueOf(config.getProperty("tun_buffer_limit", "65536"));
+    if (tunBufferLimit < 0)
+      throw new IllegalStateException ("tun_buffer_limit must not be negative");
+    receiveBufferPoolSize = Integer.valueOf(config.getProperty("receive_buffer_pool_size", "256"));
+    tunWriteQueueLength = Integer.valueOf(config.getProperty("tun_write_queue_length", "1024"));
+    if (tunWriteQueueLength < 1)
+      throw new IllegalStateException ("tun_write_queue_length must be at least 1");
+
+    String icmpSource = config.getProperty("icmp_source_address");
+    if (icmpSource == null || "".equals(icmpSource)) {
+      icmpSourceAddress = null;
+    } else {
+      InetAddress parsed = InetAddress.getByName(icmpSource);
+      if (!(parsed instanceof Inet6Address))
+        throw new IllegalStateException ("icmp_source_address must be an IPv6 address");
+      icmpSourceAddress = (Inet6Address) parsed;
+    }
+    icmpMinIntervalMs = Long.valueOf(config.getProperty("icmp_min_interval_ms", "100"));
+    icmpRateLimit = Integer.valueOf(config.getProperty("icmp_rate_limit", "1000"));
+    if (icmpMinIntervalMs < 0 || icmpRateLimit < 0)
+      throw new IllegalStateException ("icmp_min_interval_ms and icmp_rate_limit must not be negative");
+    unknownDestinationTtlMs = Long.valueOf(config.getProperty("unknown_destination_ttl_ms", "10000"));
+
+    upstreamRateLimit = Long.valueOf(config.getProperty("upstream_rate_limit", "0"));
+    downstreamRateLimit = Long.valueOf(config.getProperty("downstream_rate_limit", "0"));
+    rateLimitBurst = Long.valueOf(config.getProperty("rate_limit_burst", "65536"));
+    if (upstreamRateLimit < 0 || downstreamRateLimit < 0 || rateLimitBurst <= 0)
+      throw new IllegalStateException ("Rate limits must not be negative, rate_limit_burst must be positive");
+    rateLimitOverrides = new HashMap<>();
+    for (String key: config.stringPropertyNames()) {
+      if (key.startsWith(RATE_LIMIT_OVERRIDE_PREFIX)) {
+        String[] limits = config.getProperty(key).split("/");
+        if (limits.length != 2)
+          throw new IllegalStateException ("Rate limit override " + key + " must be given as <upstream>/<downstream>");
+        long[] override = new long[] {Long.valueOf(limits[0].trim()), Long.valueOf(limits[1].trim())};
+        if (override[0] < 0 || override[1] < 0)
+          throw new IllegalStateException ("Rate limit override " + key + " must not be negative");
+        rateLimitOverrides.put(new BigInteger(key.substring(RATE_LIMIT_OVERRIDE_PREFIX.length()), 16), override);
+      }
+    }
+    logger.config(() -> "rate limits: upstream " + upstreamRateLimit + ", downstream " + downstreamRateLimit 
+        + ", " + rateLimitOverrides.size() + " overrides");
   }
 
   /**
@@ -233,15 +542,35 @@ public class TransporterStart implements DTLSData {
    */
   public TransporterStart() throws IOException {
     super();
-    this.dtlsHash = new HashMap<>();
+    this.dtlsHash = new PrefixTable<>();
+    this.tunBufferPool = new BufferPool(tunBufferSize, tunBufferPoolSize, true,
+        BufferPool.DEFAULT_THREAD_CACHE_SIZE, tunBufferLimit);
+    this.receiveBufferPool = new BufferPool(DTLSListener.MAX_MTU, receiveBufferPoolSize, false, 0);
+    this.icmpResponder = new IcmpResponder(icmpSourceAddress, icmpMinIntervalMs, icmpRateLimit,
+        unknownDestinationTtlMs);
+    if (crlPath != null) {
+      this.crlStore = new CrlStore(crlPath, crlRefreshMs);
+      this.crlStore.start();
+    } else {
+      this.crlStore = null;
+    }
     // close all active sessions if the vm shuts down
     Runtime.getRuntime().addShutdownHook(new Thread(()->exitHandler()));
 
     TransporterParams params = new TransporterParams();
-    params.heartbeat = 10*60*1000;
+    params.heartbeat = HEARTBEAT_MS;
     params.ipv4Pop = (Inet4Address) ipv4SocketAddress.getAddress();
     params.portPop = ipv4SocketAddress.getPort();
     params.mtu = 1300;
+    params.channelMode = channelListener;
+    params.virtualThreads = virtualHandlerThreads;
+    params.mmsgBatch = mmsgBatch;
+    params.listenerThreads = listenerThreads;
+    params.chainCacheSize = chainCacheSize;
+    params.chainCacheTtlMs = chainCacheTtlMs;
+    params.crlStore = crlStore;
+    params.sessionCacheSize = sessionCacheSize;
+    params.sessionCacheTtlMs = sessionCacheTtlMs;
     dtlsListener = new DTLSListener(params);
   }
 
@@ -253,8 +582,18 @@ public class TransporterStart implements DTLSData {
    */
   public TransporterStart(Path input, Path output) throws IOException  {
     this();
+    if (sharedMemoryPassThrough) {
+      // the rings live next to the named pipes, each created by its producer
+      toAyiya = SharedMemoryRing.create(Path.of(output + RING_SUFFIX), shmRingSize);
+      fromAyiyaRing = Path.of(input + RING_SUFFIX);
+      logger.info(() -> "Passing packets through shared memory rings " + output + RING_SUFFIX + ", " + fromAyiyaRing);
+      return;
+    }
     toAyiya = FileChannel.open(output, Set.of(StandardOpenOption.APPEND, StandardOpenOption.WRITE));
     fromAyiya = FileChannel.open(input, Set.of(StandardOpenOption.READ));
+    if (framedPipes) {
+      toAyiya = new FramedPipeWriter(toAyiya, PIPE_BUFFER_SIZE);
+    }
   }
 
   /**
@@ -263,33 +602,80 @@ public class TransporterStart implements DTLSData {
    * @return a Unix return value, i.e. 0 for success.
    */
   private int run() {
-    IPv6InputHandler ipv6InputHandler;
+    IPv6InputHandler[] ipv6InputHandlers;
     try {
-      ipv6InputHandler = new IPv6InputHandler(this, "tun0", toAyiya);
+      ipv6InputHandlers = createIPv6InputHandlers();
     } catch (IllegalStateException | IOException e) {
       logger.log(Level.SEVERE, "Could not start IPv6InputHandler", e);
       return EXIT_IO_ERR;
     }
     logger.info("IPv6InputHandler is constructed");
+    // all queues of a tun device accept writes, so the first one serves the way back,
+    // fed by a single writer thread
+    final TunWriter ipv6Writer = new TunWriter(ipv6InputHandlers[0], tunBufferPool, tunWriteQueueLength);
+    tunWriter = ipv6Writer;
+    for (IPv6InputHandler handler: ipv6InputHandlers) {
+      handler.setIcmpWriter(ipv6Writer);
+    }
 
-    Thread ip4Thread = new Thread(new IPv4InputHandler(this, dtlsListener, ipv6InputHandler, expiryPeriod), "IPv4 consumer");
-    Thread ip6Thread = new Thread(ipv6InputHandler, "IPv6 consumer");
-    ip4Thread.setDaemon(true);
-    ip6Thread.setDaemon(true);
-    ip4Thread.start();
-    ip6Thread.start();
+    List<Thread> threads = new ArrayList<>(ipv6InputHandlers.length + 3);
+    Thread ip4Thread = new Thread(new IPv4InputHandler(this, dtlsListener, ipv6Writer, expiryPeriod, upstreamValidator,
+        receiveBufferPool, hibernateIdleMs, HEARTBEAT_MS), "IPv4 consumer");
+    threads.add(ip4Thread);
+    threads.add(new Thread(ipv6Writer, "Tun writer"));
+    for (int i = 0; i < ipv6InputHandlers.length; i++) {
+      threads.add(new Thread(ipv6InputHandlers[i], 
+          ipv6InputHandlers.length == 1 ? "IPv6 consumer" : "IPv6 consumer #" + i));
+    }
+    for (Thread thread: threads) {
+      thread.setDaemon(true);
+      thread.start();
+    }
     
+    if (toAyiya instanceof FramedPipeWriter) {
+      Thread pipeWriterThread = new Thread((FramedPipeWriter) toAyiya, "Ayiya pipe writer");
+      pipeWriterThread.setDaemon(true);
+      pipeWriterThread.start();
+      threads.add(pipeWriterThread);
+    }
+
     Thread ip6InThread = null;
-    if (fromAyiya != null) {
+    if (fromAyiyaRing != null) {
+      ip6InThread = new Thread(() -> {
+        try {
+          SharedMemoryRing ring = SharedMemoryRing.attach(fromAyiyaRing);
+          logger.info("Attached to shared memory ring from ayiya transporter");
+          while (ring.isOpen()) {
+            ring.readPackets(ipv6Writer);
+          }
+        } catch (ClosedChannelException e) {
+          logger.info("Shared memory ring from ayiya transporter closed");
+        } catch (IOException e) {
+          logger.log(Level.SEVERE, "Shared memory ring from ayiya transporter broken", e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }, "IPv6BackPassThread");
+      ip6InThread.setDaemon(true);
+      ip6InThread.start();
+      threads.add(ip6InThread);
+    } else if (fromAyiya != null) {
       ip6InThread = new Thread(new Runnable() {
         public void run() {
-          ByteBuffer packet = ByteBuffer.allocateDirect(32767);
           try { 
-            while (fromAyiya.isOpen()) {
-              packet.clear();
-              fromAyiya.read(packet);
-              packet.flip();
-              ipv6InputHandler.write(packet);
+            if (framedPipes) {
+              FramedPipeReader reader = new FramedPipeReader(fromAyiya, PIPE_BUFFER_SIZE);
+              while (fromAyiya.isOpen()) {
+                reader.readPackets(ipv6Writer);
+              }
+            } else {
+              ByteBuffer packet = ByteBuffer.allocateDirect(32767);
+              while (fromAyiya.isOpen()) {
+                packet.clear();
+                fromAyiya.read(packet);
+                packet.flip();
+                ipv6Writer.write(packet);
+              }
             }
           } catch (IOException e) {
             logger.log(Level.SEVERE, "Back-Pipe from ayiya transporter broken", e);
@@ -298,18 +684,48 @@ public class TransporterStart implements DTLSData {
       }, "IPv6BackPassThread");
       ip6InThread.setDaemon(true);
       ip6InThread.start();
+      threads.add(ip6InThread);
     }
 
     logger.info("Startup completed, threads running");
-    monitorThreads (
-        (fromAyiya != null) ?
-          new Thread[] {ip4Thread, ip6Thread, ip6InThread}
-        : new Thread[] {ip4Thread, ip6Thread}
-        );
+    monitorThreads (threads.toArray(new Thread[0]));
     logger.warning("Thread monitor ended, will terminate");
     return EXIT_NORMAL;
   }
 
+  /**
+   * Construct the IPv6InputHandlers according to configuration: either one handler for the
+   * single queue tun device, or one handler for each queue of a multi queue tun device.
+   * @return an array of at least one IPv6InputHandler
+   * @throws IOException in case the tun device cannot be opened
+   */
+  private IPv6InputHandler[] createIPv6InputHandlers() throws IOException {
+    final DrrScheduler scheduler = createScheduler();
+    if (tunQueues == 1) {
+      return new IPv6InputHandler[] {new IPv6InputHandler(this, TUN_DEVICE, toAyiya, scheduler, tunBufferPool, icmpResponder)};
+    }
+    MultiQueueTunChannel[] queues = MultiQueueTunChannel.openQueues(TUN_DEVICE, tunQueues);
+    IPv6InputHandler[] handlers = new IPv6InputHandler[queues.length];
+    for (int i = 0; i < queues.length; i++) {
+      handlers[i] = new IPv6InputHandler(this, queues[i], toAyiya, scheduler, tunBufferPool, icmpResponder);
+    }
+    logger.info(() -> "Attached " + queues.length + " queues to " + TUN_DEVICE);
+    return handlers;
+  }
+
+  /**
+   * Construct and start the scheduler that serves the sessions' OutboundQueues, i.e. encrypts and
+   * sends downstream packets. Each session is served by at most one thread at a time, which keeps
+   * the packets of a tunnel in order, while different tunnels are encrypted in parallel and share
+   * the sender threads by deficit round robin.
+   * @return the DrrScheduler
+   */
+  private DrrScheduler createScheduler() {
+    DrrScheduler scheduler = new DrrScheduler(drrQuantum);
+    scheduler.start(senderThreads);
+    return scheduler;
+  }
+
   /**
    * Wait as long as one of the supplied threads ends. This method returning means
    * that at least one of the supplied threads has ceased.
@@ -355,12 +771,17 @@ public class TransporterStart implements DTLSData {
    * @see de.flyingsnail.ipv6backwardserver.transporter.AyiyaData#getServer(java.net.Inet6Address)
    */
   @Override
-  public @NonNull ServerTransportTupel getServerTransport(@NonNull Inet6Address sender) throws NoSuchObjectException {
-    ServerTransportTupel matching = dtlsHash.get(sender);
+  public @NonNull ServerTransportTupel getServerTransport(@NonNull Ipv6Prefix prefix) throws NoSuchObjectException {
+    ServerTransportTupel matching = dtlsHash.getExact(prefix);
     if (matching == null)
-      throw new NoSuchObjectException("No DTLSTransport object for address " + sender);
+      throw new NoSuchObjectException("No DTLSTransport object for prefix " + prefix);
     return matching;
   }
+
+  @Override
+  public @Nullable ServerTransportTupel getServerTransport(@NonNull ByteBuffer packet, int addressOffset) {
+    return dtlsHash.get(packet, addressOffset);
+  }
   
   public long activeTunnelCount () {
     return dtlsHash.size();
@@ -372,12 +793,47 @@ public class TransporterStart implements DTLSData {
   }
 
   @Override
-  public void putServerAndTransport(@NonNull Inet6Address sender, @NonNull IPv6DTlsServer server, @NonNull DTLSTransport dtls) {
-    dtlsHash.put(sender, new ServerTransportTupel(server, dtls));
+  public @NonNull ServerTransportTupel putServerAndTransport(@NonNull Ipv6Prefix prefix, @NonNull IPv6DTlsServer server, @NonNull DTLSTransport dtls) {
+    long[] limits = rateLimitsFor(server);
+    ServerTransportTupel session = new ServerTransportTupel(prefix, server, dtls, sessionQueueLength, tunBufferPool,
+        limits[0] > 0 ? new TokenBucket(limits[0], rateLimitBurst) : null,
+        limits[1] > 0 ? new TokenBucket(limits[1], rateLimitBurst) : null);
+    dtlsHash.put(prefix, session);
+    return session;
+  }
+
+  /**
+   * Determine the rate limits for a client: the override configured for its certificate's serial
+   * number, or the defaults.
+   * @param server the IPv6DTlsServer holding the client's certificate
+   * @return a long[] of upstream and downstream rate limit in bytes per second, 0 meaning unlimited
+   */
+  private long[] rateLimitsFor(@NonNull IPv6DTlsServer server) {
+    if (!rateLimitOverrides.isEmpty() && server.getClientCert() != null) {
+      long[] override = rateLimitOverrides.get(server.getClientCert().getSerialNumber());
+      if (override != null) {
+        logger.fine(() -> "Using rate limit override for " + server.getClientCert().getSerialNumber().toString(16));
+        return override;
+      }
+    }
+    return new long[] {upstreamRateLimit, downstreamRateLimit};
+  }
+
+  @Override
+  public ServerTransportTupel removeServerTransport(@NonNull Ipv6Prefix prefix) {
+    ServerTransportTupel removed = dtlsHash.remove(prefix, null);
+    if (removed != null) {
+      removed.getOutboundQueue().close();
+    }
+    return removed;
   }
 
   @Override
-  public ServerTransportTupel removeServerTransport(@NonNull Inet6Address sender) {
-    return dtlsHash.remove(sender);
+  public boolean removeServerTransport(@NonNull ServerTransportTupel session) {
+    if (dtlsHash.remove(session.getPrefix(), session) != null) {
+      session.getOutboundQueue().close();
+      return true;
+    }
+    return false;
   }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * A BufferWriter that funnels the packets of all client handler threads, of the back pass
+ * from the ayiya transporter and the ICMPv6 error messages of the tun reader threads into one
+ * thread writing to the tun device. Producers copy the packet
+ * into a pooled direct buffer and append it to a bounded, lock-free multi producer queue; the
+ * writer thread ({@link #run()}) drains the queue and writes the packets back to back, so the
+ * producers never contend for the tun device.
+ * <p>
+ * A tun device takes exactly one packet per write, so writes cannot be merged with writev; the
+ * gain is that a single thread keeps the device busy without lock handovers. If the queue is
+ * full or the BufferPool is exhausted, the packet is dropped and counted.
+ */
+class TunWriter implements BufferWriter, Runnable {
+  private final Logger logger = Logger.getLogger(TunWriter.class.getName());
+
+  private final @NonNull BufferWriter tun;
+
+  private final @NonNull BufferPool bufferPool;
+
+  /** The queue slots; a slot is non-null between publication and consumption */
+  private final AtomicReferenceArray<ByteBuffer> slots;
+
+  private final int mask;
+
+  /** Next slot to claim by a producer */
+  private final AtomicLong tail = new AtomicLong();
+
+  /** Next slot to consume; only written by the writer thread */
+  private volatile long head;
+
+  /** The writer thread, to unpark when packets arrive while it is parked */
+  private volatile Thread writer;
+  private volatile boolean parked;
+
+  private final AtomicLong writtenCounter = new AtomicLong();
+  private final AtomicLong droppedCounter = new AtomicLong();
+  private final AtomicLong errorCounter = new AtomicLong();
+
+  /**
+   * @param tun the BufferWriter writing to the tun device, e.g. the IPv6InputHandler
+   * @param bufferPool the BufferPool to copy packets to
+   * @param capacity the maximum number of queued packets, rounded up to a power of two
+   */
+  TunWriter(@NonNull BufferWriter tun, @NonNull BufferPool bufferPool, int capacity) {
+    this.tun = tun;
+    this.bufferPool = bufferPool;
+    final int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+  }
+
+  /**
+   * Queue a packet for writing to the tun device. The packet is copied, so the caller may re-use
+   * the buffer immediately. Never blocks.
+   * @param bb a ByteBuffer containing exactly one packet between position and limit
+   */
+  @Override
+  public void write(ByteBuffer bb) throws IOException {
+    // take the buffer first: a claimed slot must be published
+    final ByteBuffer copy = bb.remaining() <= bufferPool.getBufferSize()
+        ? bufferPool.acquire() : ByteBuffer.allocateDirect(bb.remaining());
+    if (copy == null) {
+      droppedCounter.incrementAndGet();
+      return;
+    }
+    long claimed;
+    do {
+      claimed = tail.get();
+      if (claimed - head > mask) {
+        // producers include client handler threads, which end soon with their cache
+        bufferPool.release(copy, false);
+        droppedCounter.incrementAndGet();
+        return;
+      }
+    } while (!tail.compareAndSet(claimed, claimed + 1));
+
+    final int position = bb.position();
+    copy.put(bb).flip();
+    bb.position(position);
+    slots.set((int)(claimed & mask), copy);
+    if (parked) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  @Override
+  public short verifyHeaderReturnPacketLength(ByteBuffer bb) throws IOException {
+    return tun.verifyHeaderReturnPacketLength(bb);
+  }
+
+  /**
+   * The writer thread: write queued packets in order, park while the queue is empty.
+   */
+  @Override
+  public void run() {
+    writer = Thread.currentThread();
+    logger.info("Tun writer started");
+    long position = head;
+    while (!Thread.currentThread().isInterrupted()) {
+      final int index = (int)(position & mask);
+      final ByteBuffer packet = slots.get(index);
+      if (packet == null) {
+        if (tail.get() != position) {
+          // claimed, but not yet published by its producer
+          Thread.onSpinWait();
+          continue;
+        }
+        parked = true;
+        if (tail.get() == position) {
+          LockSupport.park(this);
+        }
+        parked = false;
+        continue;
+      }
+      slots.set(index, null);
+      head = ++position;
+      try {
+        tun.write(packet);
+        writtenCounter.incrementAndGet();
+      } catch (IOException e) {
+        errorCounter.incrementAndGet();
+        logger.log(Level.FINE, "Failed to write packet to tun device", e);
+      }
+      if (packet.capacity() == bufferPool.getBufferSize()) {
+        bufferPool.release(packet);
+      }
+    }
+    logger.info("Tun writer stopped");
+  }
+
+  /**
+   * @return the number of packets waiting to be written
+   */
+  int getQueueDepth() {
+    return (int)(tail.get() - head);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("tun writer: written %d, queued %d, dropped %d, errors %d",
+        writtenCounter.get(), getQueueDepth(), droppedCounter.get(), errorCounter.get());
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2026 Dr. Andreas Feldner.
+ *      This program is free software; you can redistribute it and/or modify
+ *      it under the terms of the GNU General Public License as published by
+ *      the Free Software Foundation; either version 2 of the License, or
+ *      (at your option) any later version.
+ *
+ *      This program is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *      GNU General Public License for more details.
+ *
+ *      You should have received a copy of the GNU General Public License along
+ *      with this program; if not, write to the Free Software Foundation, Inc.,
+ *      51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *   Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ *
+ *
+ */
+
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Validates IPv6 packets received from a client before they are written to the tun device. The
+ * checks work on the packet buffer in place and on primitive values only, so that the upstream
+ * path does not allocate; rejected packets are counted per reason instead of being reported by
+ * exception and log message.
+ */
+class UpstreamValidator {
+  /** The reasons for rejecting an upstream packet */
+  enum DropReason {
+    /** Shorter than an IPv6 header */
+    TOO_SHORT,
+    /** Version field is not 6 */
+    NOT_IPV6,
+    /** Payload length field does not match the received length */
+    LENGTH_MISMATCH,
+    /** Source address outside the client's prefix */
+    SOURCE_OUTSIDE_PREFIX,
+    /** Exceeding the client's upstream rate limit */
+    RATE_LIMITED
+  }
+
+  private static final DropReason[] REASONS = DropReason.values();
+
+  private final LongAdder[] dropCounters = new LongAdder[REASONS.length];
+
+  private final LongAdder validCounter = new LongAdder();
+
+  UpstreamValidator() {
+    for (int i = 0; i < dropCounters.length; i++) {
+      dropCounters[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Check a packet received from a client, and count the result.
+   * @param clientPrefix the Ipv6Prefix from the client's certificate
+   * @param bb a ByteBuffer containing exactly one packet between position and limit. It is not
+   *        modified.
+   * @return the DropReason if the packet must be dropped, or null if it is valid
+   */
+  @Nullable DropReason validate(@NonNull Ipv6Prefix clientPrefix, @NonNull ByteBuffer bb) {
+    final DropReason reason = check(clientPrefix, bb);
+    if (reason == null) {
+      validCounter.increment();
+    } else {
+      dropCounters[reason.ordinal()].increment();
+    }
+    return reason;
+  }
+
+  private static @Nullable DropReason check(@NonNull Ipv6Prefix clientPrefix, @NonNull ByteBuffer bb) {
+    final int start = bb.position();
+    if (bb.remaining() < IPv6InputHandler.IPV6PACKET_HEADER_LENGTH) {
+      return DropReason.TOO_SHORT;
+    }
+    if ((bb.get(start + IPv6InputHandler.IPV6PACKET_PROTOCOL_BYTE_OFFSET) & 0xff)
+        >>> IPv6InputHandler.IPV6PACKET_PROTOCOL_BIT_OFFSET != 6) {
+      return DropReason.NOT_IPV6;
+    }
+    final int payloadLength = bb.getShort(start + IPv6InputHandler.IPV6PACKET_LENGTH_OFFSET) & 0xffff;
+    if (payloadLength + IPv6InputHandler.IPV6PACKET_HEADER_LENGTH != bb.remaining()) {
+      return DropReason.LENGTH_MISMATCH;
+    }
+    if (!clientPrefix.contains(bb, start + IPv6InputHandler.IPV6PACKET_SOURCE_OFFSET)) {
+      return DropReason.SOURCE_OUTSIDE_PREFIX;
+    }
+    return null;
+  }
+
+  /**
+   * Count a packet dropped by a later stage.
+   * @param reason the DropReason
+   */
+  void countDrop(@NonNull DropReason reason) {
+    dropCounters[reason.ordinal()].increment();
+  }
+
+  /**
+   * @param reason the DropReason
+   * @return the number of packets dropped for this reason
+   */
+  long getDropCount(@NonNull DropReason reason) {
+    return dropCounters[reason.ordinal()].sum();
+  }
+
+  /**
+   * @return the number of packets dropped for any reason
+   */
+  long getDropCount() {
+    long sum = 0;
+    for (LongAdder counter: dropCounters) {
+      sum += counter.sum();
+    }
+    return sum;
+  }
+
+  /**
+   * @return the number of valid packets
+   */
+  long getValidCount() {
+    return validCounter.sum();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("upstream packets: valid ").append(validCounter.sum());
+    for (DropReason reason: REASONS) {
+      sb.append(", ").append(reason.name().toLowerCase()).append(' ').append(dropCounters[reason.ordinal()].sum());
+    }
+    return sb.toString();
+  }
+}
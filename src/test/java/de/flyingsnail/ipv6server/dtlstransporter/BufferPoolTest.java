@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+  @Test
+  public void testSlabAndThreadCache() {
+    BufferPool pool = new BufferPool(2048, 16);
+    ByteBuffer first = pool.acquire();
+    assertTrue(first.isDirect());
+    assertEquals(2048, first.capacity());
+    // one slab fills the shared pool
+    assertEquals(17, pool.getAllocatedCount());
+
+    pool.release(first);
+    assertSame(first, pool.acquire());
+    for (int i = 0; i < 16; i++) {
+      pool.acquire();
+    }
+    assertEquals(17, pool.getAllocatedCount());
+    pool.acquire();
+    assertEquals(34, pool.getAllocatedCount());
+  }
+
+  @Test
+  public void testForeignBuffersIgnored() {
+    BufferPool pool = new BufferPool(1024, 4, false, 0);
+    ByteBuffer own = pool.acquire();
+    assertFalse(own.isDirect());
+    pool.release(ByteBuffer.allocate(512));
+    pool.release(ByteBuffer.allocateDirect(1024));
+    pool.release(own);
+    assertSame(own, pool.acquire());
+  }
+
+  @Test
+  public void testCap() {
+    BufferPool pool = new BufferPool(1024, 100, true, 0, 10);
+    ByteBuffer[] taken = new ByteBuffer[10];
+    for (int i = 0; i < taken.length; i++) {
+      taken[i] = pool.acquire();
+      assertNotNull(taken[i]);
+    }
+    // the slab is cut short at the cap
+    assertEquals(10, pool.getAllocatedCount());
+    assertNull(pool.acquire());
+    assertEquals(1, pool.getExhaustedCount());
+
+    pool.release(taken[3]);
+    assertSame(taken[3], pool.acquire());
+    assertNull(pool.acquire());
+    assertEquals(10, pool.getAllocatedCount());
+    assertEquals(2, pool.getExhaustedCount());
+  }
+
+  @Test
+  public void testDroppedBuffersFreeTheCap() {
+    BufferPool pool = new BufferPool(1024, 2, true, 0, 4);
+    ByteBuffer[] taken = new ByteBuffer[4];
+    for (int i = 0; i < taken.length; i++) {
+      taken[i] = pool.acquire();
+      assertNotNull(taken[i]);
+    }
+    assertNull(pool.acquire());
+
+    // two fit into the pool, two are dropped
+    for (ByteBuffer bb: taken) {
+      pool.release(bb);
+    }
+    assertEquals(2, pool.getAllocatedCount());
+    for (int i = 0; i < taken.length; i++) {
+      assertNotNull(pool.acquire());
+    }
+    assertNull(pool.acquire());
+    assertEquals(4, pool.getAllocatedCount());
+  }
+
+  @Test
+  public void testReleaseBypassingThreadCache() throws Exception {
+    BufferPool pool = new BufferPool(1024, 4, true, 8, 1);
+    ByteBuffer own = pool.acquire();
+    Thread shortLived = new Thread(() -> pool.release(own, false));
+    shortLived.start();
+    shortLived.join();
+    // the buffer did not die with the other thread's cache
+    assertSame(own, pool.acquire());
+  }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Date;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.tls.TlsFatalAlert;
+import org.bouncycastle.tls.crypto.TlsCertificate;
+import org.bouncycastle.tls.crypto.impl.bc.BcTlsCrypto;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class ChainCheckerTest {
+  private static final String CA_NAME = "CN=Test CA";
+
+  private static final long DAY = 24L * 3600 * 1000;
+
+  private static final BcTlsCrypto crypto = new BcTlsCrypto(new SecureRandom());
+
+  private static KeyPair caKeys;
+
+  private static TlsCertificate caCert;
+
+  private static TlsCertificate[] clientChain;
+
+  private static long serial = 1;
+
+  /** Serves an empty CRL of the test CA, referenced by the certificates' CRL distribution point */
+  private static HttpServer crlServer;
+
+  private static String crlUrl;
+
+  @BeforeClass
+  public static void createCertificates() throws Exception {
+    Security.addProvider(new BouncyCastleProvider());
+    // as in TransporterStart
+    System.setProperty("org.bouncycastle.x509.enableCRLDP", "true");
+    caKeys = newKeyPair();
+    final byte[] crl = crl();
+    // the CRL distribution point is only fetched by http
+    crlServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    crlServer.createContext("/ca.crl", exchange -> {
+      exchange.sendResponseHeaders(200, crl.length);
+      try (OutputStream body = exchange.getResponseBody()) {
+        body.write(crl);
+      }
+    });
+    crlServer.start();
+    crlUrl = "http://127.0.0.1:" + crlServer.getAddress().getPort() + "/ca.crl";
+    caCert = certificate(CA_NAME, caKeys.getPublic(), CA_NAME, caKeys.getPrivate(), true, 10 * DAY);
+    KeyPair clientKeys = newKeyPair();
+    clientChain = new TlsCertificate[] {
+        certificate("CN=client", clientKeys.getPublic(), CA_NAME, caKeys.getPrivate(), false, DAY),
+        caCert
+    };
+  }
+
+  @AfterClass
+  public static void stopCrlServer() {
+    crlServer.stop(0);
+  }
+
+  private static byte[] crl(BigInteger... revoked) throws Exception {
+    Date now = new Date();
+    X509v2CRLBuilder crlBuilder = new X509v2CRLBuilder(new X500Name(CA_NAME), now);
+    crlBuilder.setNextUpdate(new Date(now.getTime() + DAY));
+    for (BigInteger serial: revoked) {
+      crlBuilder.addCRLEntry(serial, now, CRLReason.keyCompromise);
+    }
+    return crlBuilder.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeys.getPrivate())).getEncoded();
+  }
+
+  private static KeyPair newKeyPair() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    return generator.generateKeyPair();
+  }
+
+  private static TlsCertificate certificate(String subject, PublicKey key, String issuer, PrivateKey issuerKey,
+      boolean ca, long validity) throws Exception {
+    long now = System.currentTimeMillis();
+    X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name(issuer),
+        BigInteger.valueOf(serial++), new Date(now - 60000), new Date(now + validity), new X500Name(subject), key);
+    builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(ca));
+    builder.addExtension(Extension.cRLDistributionPoints, false, new CRLDistPoint(new DistributionPoint[] {
+        new DistributionPoint(new DistributionPointName(new GeneralNames(
+            new GeneralName(GeneralName.uniformResourceIdentifier, crlUrl))), null, null)
+    }));
+    return crypto.createCertificate(
+        builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(issuerKey)).getEncoded());
+  }
+
+  @Test
+  public void testRepeatedChainIsCached() throws Exception {
+    ChainChecker checker = new ChainChecker(caCert, 16, DAY, null);
+    Date expiry = checker.checkChain(clientChain);
+    assertEquals(0, checker.getHitCount());
+    assertEquals(1, checker.getMissCount());
+
+    assertEquals(expiry, checker.checkChain(clientChain));
+    assertEquals(1, checker.getHitCount());
+    assertEquals(1, checker.getMissCount());
+  }
+
+  @Test
+  public void testForeignChainIsRejectedEveryTime() throws Exception {
+    KeyPair foreignKeys = newKeyPair();
+    TlsCertificate foreignCa = certificate("CN=Foreign CA", foreignKeys.getPublic(), "CN=Foreign CA",
+        foreignKeys.getPrivate(), true, DAY);
+    TlsCertificate[] foreignChain = new TlsCertificate[] {
+        certificate("CN=intruder", foreignKeys.getPublic(), "CN=Foreign CA", foreignKeys.getPrivate(), false, DAY),
+        foreignCa
+    };
+    ChainChecker checker = new ChainChecker(caCert, 16, DAY, null);
+    for (int i = 0; i < 2; i++) {
+      try {
+        checker.checkChain(foreignChain);
+        fail("Chain of foreign CA accepted");
+      } catch (TlsFatalAlert e) {
+        // expected
+      }
+    }
+    assertEquals(0, checker.getHitCount());
+    assertEquals(2, checker.getMissCount());
+  }
+
+  @Test
+  public void testCacheDisabled() throws Exception {
+    ChainChecker disabled = new ChainChecker(caCert, 0, DAY, null);
+    disabled.checkChain(clientChain);
+    disabled.checkChain(clientChain);
+    assertEquals(0, disabled.getHitCount());
+
+    ChainChecker noTtl = new ChainChecker(caCert, 16, 0, null);
+    noTtl.checkChain(clientChain);
+    noTtl.checkChain(clientChain);
+    assertEquals(0, noTtl.getHitCount());
+    assertEquals(2, noTtl.getMissCount());
+  }
+
+  @Test
+  public void testLocalCrlRevocation() throws Exception {
+    Path directory = Files.createTempDirectory("crls");
+    Path crlFile = directory.resolve("ca.crl");
+    // as in TransporterStart with a local CRL store
+    System.clearProperty("org.bouncycastle.x509.enableCRLDP");
+    try {
+      Files.write(crlFile, crl());
+      CrlStore crlStore = new CrlStore(directory, DAY);
+      assertEquals(1, crlStore.getGeneration());
+      assertFalse(crlStore.refresh());
+      ChainChecker checker = new ChainChecker(caCert, 16, DAY, crlStore);
+      checker.checkChain(clientChain);
+
+      Files.write(crlFile, crl(clientChain[0].getSerialNumber()));
+      assertTrue(crlStore.refresh());
+      assertEquals(2, crlStore.getGeneration());
+      try {
+        checker.checkChain(clientChain);
+        fail("Revoked certificate accepted");
+      } catch (TlsFatalAlert e) {
+        // expected
+      }
+      assertEquals(0, checker.getHitCount());
+      assertEquals(2, checker.getMissCount());
+    } finally {
+      System.setProperty("org.bouncycastle.x509.enableCRLDP", "true");
+      Files.deleteIfExists(crlFile);
+      Files.delete(directory);
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class DemuxDatagramTransportTest {
+
+  @Test
+  public void testDeliverReceiveClose() throws IOException {
+    ConcurrentHashMap<InetSocketAddress, DemuxDatagramTransport> clients = new ConcurrentHashMap<>();
+    InetSocketAddress remote = new InetSocketAddress("127.0.0.1", 4711);
+    try (DatagramChannel channel = DatagramChannel.open()) {
+      DemuxDatagramTransport transport = new DemuxDatagramTransport(channel::send, remote, 1500, 2000, 2, clients, false);
+      clients.put(remote, transport);
+
+      byte[] buf = new byte[2000];
+      assertEquals(-1, transport.receive(buf, 0, buf.length, 1));
+
+      assertTrue(transport.deliver(ByteBuffer.wrap(new byte[] {1, 2, 3})));
+      assertTrue(transport.deliver(ByteBuffer.wrap(new byte[] {4})));
+      assertFalse(transport.deliver(ByteBuffer.wrap(new byte[] {5})));
+      assertEquals(1, transport.getDroppedCount());
+
+      assertEquals(3, transport.receive(buf, 0, buf.length, 1));
+      assertEquals(3, buf[2]);
+      assertEquals(1, transport.receive(buf, 0, buf.length, 1));
+      assertEquals(4, buf[0]);
+
+      transport.close();
+      assertNull(clients.get(remote));
+      assertFalse(transport.deliver(ByteBuffer.wrap(new byte[] {6})));
+      try {
+        transport.receive(buf, 0, buf.length, 1);
+        throw new AssertionError("receive on closed transport succeeded");
+      } catch (SocketException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testHibernateAndResume() throws Exception {
+    ConcurrentHashMap<InetSocketAddress, DemuxDatagramTransport> clients = new ConcurrentHashMap<>();
+    InetSocketAddress remote = new InetSocketAddress("127.0.0.1", 4711);
+    try (DatagramChannel channel = DatagramChannel.open()) {
+      DemuxDatagramTransport transport = new DemuxDatagramTransport(channel::send, remote, 1500, 2000, 2, clients, false);
+      CountDownLatch resumed = new CountDownLatch(1);
+
+      assertTrue(transport.hibernate(resumed::countDown, 0));
+      assertEquals(1, resumed.getCount());
+      transport.deliver(ByteBuffer.wrap(new byte[] {1}));
+      assertTrue(resumed.await(5, TimeUnit.SECONDS));
+
+      // a datagram is waiting, so the handler must not hibernate
+      assertFalse(transport.hibernate(() -> {
+        throw new AssertionError("resumed although not hibernated");
+      }, 0));
+    }
+  }
+
+  @Test
+  public void testHibernationWakesUpForHeartbeat() throws Exception {
+    ConcurrentHashMap<InetSocketAddress, DemuxDatagramTransport> clients = new ConcurrentHashMap<>();
+    InetSocketAddress remote = new InetSocketAddress("127.0.0.1", 4711);
+    try (DatagramChannel channel = DatagramChannel.open()) {
+      DemuxDatagramTransport transport = new DemuxDatagramTransport(channel::send, remote, 1500, 2000, 2, clients, false);
+
+      // an idle client's handler is resumed when the wake-up time is up, without any datagram
+      CountDownLatch woken = new CountDownLatch(1);
+      assertTrue(transport.hibernate(woken::countDown, 50));
+      assertTrue(woken.await(5, TimeUnit.SECONDS));
+      assertEquals(1, transport.getWakeUpCount());
+
+      // a datagram arriving first resumes the handler once, the wake-up is cancelled
+      AtomicInteger resumed = new AtomicInteger();
+      CountDownLatch first = new CountDownLatch(1);
+      assertTrue(transport.hibernate(() -> {
+        resumed.incrementAndGet();
+        first.countDown();
+      }, 200));
+      transport.deliver(ByteBuffer.wrap(new byte[] {1}));
+      assertTrue(first.await(5, TimeUnit.SECONDS));
+      Thread.sleep(400);
+      assertEquals(1, resumed.get());
+      assertEquals(1, transport.getWakeUpCount());
+    }
+  }
+
+  /**
+   * @return a datagram holding a tls12_cid record with the given connection ID and sequence number
+   */
+  private static ByteBuffer cidRecord(byte[] connectionId, long sequence) {
+    ByteBuffer record = ByteBuffer.allocate(11 + connectionId.length + 2 + 4);
+    record.put((byte)25).putShort((short)0xfefd);
+    record.putLong((1L << 48) | sequence);
+    record.put(connectionId).putShort((short)4).putInt(0x0badcafe);
+    record.flip();
+    return record;
+  }
+
+  @Test
+  public void testConnectionIdMigration() throws IOException {
+    ConcurrentHashMap<InetSocketAddress, DemuxDatagramTransport> clients = new ConcurrentHashMap<>();
+    ConcurrentHashMap<ByteBuffer, DemuxDatagramTransport> connectionIds = new ConcurrentHashMap<>();
+    InetSocketAddress remote = new InetSocketAddress("127.0.0.1", 4711);
+    InetSocketAddress rebound = new InetSocketAddress("127.0.0.1", 4712);
+    InetSocketAddress spoofed = new InetSocketAddress("127.0.0.1", 4713);
+    byte[] connectionId = {1, 2, 3, 4, 5, 6, 7, 8};
+    try (DatagramChannel channel = DatagramChannel.open()) {
+      DemuxDatagramTransport transport = new DemuxDatagramTransport(channel::send, remote, 1500, 2000, 4, clients, false,
+          connectionId, connectionIds);
+      clients.put(remote, transport);
+      connectionIds.put(ByteBuffer.wrap(connectionId), transport);
+
+      ByteBuffer datagram = cidRecord(connectionId, 5);
+      ByteBuffer extracted = DemuxDatagramTransport.connectionIdOf(datagram);
+      assertNotNull(extracted);
+      assertEquals(transport, connectionIds.get(extracted));
+      assertEquals(0, datagram.position());
+      assertNull(DemuxDatagramTransport.connectionIdOf(ByteBuffer.wrap(new byte[] {23, 1, 2, 3})));
+
+      byte[] buf = new byte[2000];
+      // a record from a new address only moves the transport once confirmed as authenticated
+      assertTrue(transport.deliver(datagram, rebound));
+      assertTrue(transport.receive(buf, 0, buf.length, 1) > 0);
+      assertEquals(remote, transport.getRemote());
+      transport.confirmPeer();
+      assertEquals(rebound, transport.getRemote());
+      assertEquals(transport, clients.get(rebound));
+      assertNull(clients.get(remote));
+      assertEquals(1, transport.getMigrationCount());
+
+      // an older record, delayed in the network, does not move it back
+      assertTrue(transport.deliver(cidRecord(connectionId, 3), remote));
+      transport.receive(buf, 0, buf.length, 1);
+      transport.confirmPeer();
+      assertEquals(rebound, transport.getRemote());
+
+      // a record failing authentication is never confirmed
+      assertTrue(transport.deliver(cidRecord(connectionId, 7), spoofed));
+      transport.receive(buf, 0, buf.length, 1);
+      assertTrue(transport.deliver(cidRecord(connectionId, 8), rebound));
+      transport.receive(buf, 0, buf.length, 1);
+      transport.confirmPeer();
+      assertEquals(rebound, transport.getRemote());
+      assertEquals(1, transport.getMigrationCount());
+
+      transport.close();
+      assertNull(clients.get(rebound));
+      assertTrue(connectionIds.isEmpty());
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.tls.DatagramTransport;
+import org.junit.Test;
+
+public class DrrSchedulerTest {
+
+  /**
+   * A DatagramTransport standing in for a DTLS session. It checks that packets arrive in sequence
+   * and that never two threads send at the same time.
+   */
+  static class RecordingTransport implements DatagramTransport {
+    final AtomicLong sent = new AtomicLong();
+    final AtomicInteger sending = new AtomicInteger();
+    volatile String error;
+    private long next;
+
+    @Override
+    public int getReceiveLimit() {
+      return 1500;
+    }
+
+    @Override
+    public int getSendLimit() {
+      return 1500;
+    }
+
+    @Override
+    public int receive(byte[] buf, int off, int len, int waitMillis) {
+      return -1;
+    }
+
+    @Override
+    public void send(byte[] buf, int off, int len) {
+      if (sending.getAndIncrement() != 0) {
+        error = "concurrent send";
+      }
+      final long sequence = ByteBuffer.wrap(buf).getLong(off);
+      if (sequence != next) {
+        error = "expected packet " + next + ", got " + sequence;
+      }
+      next = sequence + 1;
+      sending.decrementAndGet();
+      sent.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Offer a packet of the given size and sequence number, retrying while the queue is full.
+   */
+  static void offer(OutboundQueue queue, DrrScheduler scheduler, BufferPool pool, int size, long sequence) {
+    final ByteBuffer packet = pool.acquire();
+    packet.putLong(0, sequence).limit(size);
+    while (!queue.offer(packet, scheduler)) {
+      Thread.yield();
+    }
+  }
+
+  @Test
+  public void testByteFairInterleaving() throws Exception {
+    DrrScheduler scheduler = new DrrScheduler(1500);
+    BufferPool pool = new BufferPool(1500, 64, false, 0);
+    RecordingTransport bulk = new RecordingTransport();
+    RecordingTransport interactive = new RecordingTransport();
+    OutboundQueue bulkQueue = new OutboundQueue(bulk, 64, pool);
+    OutboundQueue interactiveQueue = new OutboundQueue(interactive, 64, pool);
+    for (int i = 0; i < 20; i++) {
+      offer(bulkQueue, scheduler, pool, 1500, i);
+    }
+    for (int i = 0; i < 20; i++) {
+      offer(interactiveQueue, scheduler, pool, 100, i);
+    }
+    assertEquals(2, scheduler.getActiveCount());
+
+    // first round: one full sized packet, or 15 small ones
+    scheduler.serveNext();
+    scheduler.serveNext();
+    assertEquals(1, bulk.sent.get());
+    assertEquals(15, interactive.sent.get());
+
+    // second round: the interactive queue is drained and leaves the active list
+    scheduler.serveNext();
+    scheduler.serveNext();
+    assertEquals(2, bulk.sent.get());
+    assertEquals(20, interactive.sent.get());
+    assertEquals(1, scheduler.getActiveCount());
+
+    while (scheduler.getActiveCount() > 0) {
+      scheduler.serveNext();
+    }
+    assertEquals(20, bulk.sent.get());
+    assertEquals(null, bulk.error);
+    assertEquals(null, interactive.error);
+  }
+
+  @Test
+  public void testDeficitCarryOver() throws Exception {
+    DrrScheduler scheduler = new DrrScheduler(1500);
+    BufferPool pool = new BufferPool(1500, 64, false, 0);
+    RecordingTransport full = new RecordingTransport();
+    RecordingTransport partial = new RecordingTransport();
+    OutboundQueue fullQueue = new OutboundQueue(full, 64, pool);
+    OutboundQueue partialQueue = new OutboundQueue(partial, 64, pool);
+    for (int i = 0; i < 10; i++) {
+      offer(fullQueue, scheduler, pool, 1500, i);
+      offer(partialQueue, scheduler, pool, 1000, i);
+    }
+
+    // the 500 bytes left from the first round add to the second round's quantum
+    for (int round = 0; round < 2; round++) {
+      scheduler.serveNext();
+      scheduler.serveNext();
+    }
+    assertEquals(2, full.sent.get());
+    assertEquals(3, partial.sent.get());
+
+    // after six rounds, both sent 9000 bytes
+    for (int round = 2; round < 6; round++) {
+      scheduler.serveNext();
+      scheduler.serveNext();
+    }
+    assertEquals(6, full.sent.get());
+    assertEquals(9, partial.sent.get());
+  }
+
+  @Test
+  public void testOrderWithSeveralSenders() throws Exception {
+    final int queues = 8;
+    final int perQueue = 20_000;
+    DrrScheduler scheduler = new DrrScheduler(1500);
+    BufferPool pool = new BufferPool(64, 4096, false, 0);
+    scheduler.start(4);
+
+    List<RecordingTransport> transports = new ArrayList<>();
+    List<Thread> producers = new ArrayList<>();
+    for (int q = 0; q < queues; q++) {
+      RecordingTransport transport = new RecordingTransport();
+      OutboundQueue queue = new OutboundQueue(transport, 256, pool);
+      transports.add(transport);
+      Thread producer = new Thread(() -> {
+        for (int i = 0; i < perQueue; i++) {
+          offer(queue, scheduler, pool, 40 + i % 24, i);
+        }
+      });
+      producers.add(producer);
+      producer.start();
+    }
+    for (Thread producer: producers) {
+      producer.join();
+    }
+
+    long deadline = System.currentTimeMillis() + 10_000;
+    for (RecordingTransport transport: transports) {
+      while (transport.sent.get() < perQueue && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(null, transport.error);
+      assertEquals(perQueue, transport.sent.get());
+    }
+  }
+
+  @Test
+  public void testNoLostWakeup() throws Exception {
+    DrrScheduler scheduler = new DrrScheduler(1500);
+    BufferPool pool = new BufferPool(64, 16, false, 0);
+    scheduler.start(4);
+    RecordingTransport transport = new RecordingTransport();
+    OutboundQueue queue = new OutboundQueue(transport, 4, pool);
+
+    // each packet is offered right after the previous one was sent, i.e. typically while the
+    // sender thread is about to remove the queue from the active list; it must be sent nonetheless
+    for (int i = 0; i < 50_000; i++) {
+      offer(queue, scheduler, pool, 40, i);
+      long deadline = System.currentTimeMillis() + 5_000;
+      while (transport.sent.get() <= i && System.currentTimeMillis() < deadline) {
+        Thread.onSpinWait();
+      }
+      assertTrue("packet " + i + " not sent", transport.sent.get() > i);
+    }
+    assertEquals(50_000, transport.sent.get());
+    assertEquals(null, transport.error);
+  }
+}
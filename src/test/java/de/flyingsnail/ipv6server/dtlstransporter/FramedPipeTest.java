@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FramedPipeTest {
+
+  /** A BufferWriter collecting copies of the packets written */
+  private static class CollectingWriter implements BufferWriter {
+    final List<byte[]> packets = new ArrayList<>();
+
+    @Override
+    public void write(ByteBuffer bb) {
+      byte[] packet = new byte[bb.remaining()];
+      bb.duplicate().get(packet);
+      packets.add(packet);
+    }
+
+    @Override
+    public short verifyHeaderReturnPacketLength(ByteBuffer bb) {
+      return bb.getShort(bb.position() + 4);
+    }
+  }
+
+  /** A channel returning its content in small chunks, splitting frames */
+  private static class ChunkedChannel implements ReadableByteChannel {
+    private final ByteBuffer content;
+    private final int chunk;
+
+    ChunkedChannel(ByteBuffer content, int chunk) {
+      this.content = content;
+      this.chunk = chunk;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+      if (!content.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(chunk, Math.min(dst.remaining(), content.remaining()));
+      ByteBuffer slice = content.duplicate();
+      slice.limit(slice.position() + n);
+      dst.put(slice);
+      content.position(content.position() + n);
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static byte[] packet(int payloadLength, int fill) {
+    byte[] packet = new byte[IPv6InputHandler.IPV6PACKET_HEADER_LENGTH + payloadLength];
+    Arrays.fill(packet, (byte)fill);
+    packet[0] = 0x60;
+    packet[4] = (byte)(payloadLength >> 8);
+    packet[5] = (byte)payloadLength;
+    return packet;
+  }
+
+  @Test
+  public void testReaderReassemblesSplitFrames() throws Exception {
+    byte[][] packets = {packet(0, 1), packet(1200, 2), packet(17, 3)};
+    ByteBuffer stream = ByteBuffer.allocate(2000);
+    for (byte[] p: packets) {
+      stream.putInt(p.length).put(p);
+    }
+    stream.flip();
+    FramedPipeReader reader = new FramedPipeReader(new ChunkedChannel(stream, 100), 0);
+    CollectingWriter out = new CollectingWriter();
+    try {
+      while (true) {
+        reader.readPackets(out);
+      }
+    } catch (IOException e) {
+      // EOF
+    }
+    assertEquals(packets.length, out.packets.size());
+    for (int i = 0; i < packets.length; i++) {
+      assertArrayEquals(packets[i], out.packets.get(i));
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testRoundTrip() throws Exception {
+    Pipe pipe = Pipe.open();
+    FramedPipeWriter writer = new FramedPipeWriter(pipe.sink(), 64 * 1024);
+    Thread writerThread = new Thread(writer);
+    writerThread.setDaemon(true);
+    writerThread.start();
+
+    byte[][] packets = {packet(100, 4), packet(1400, 5), packet(8, 6)};
+    for (byte[] p: packets) {
+      writer.write(ByteBuffer.wrap(p));
+    }
+
+    FramedPipeReader reader = new FramedPipeReader(pipe.source(), 0);
+    CollectingWriter out = new CollectingWriter();
+    while (out.packets.size() < packets.length) {
+      reader.readPackets(out);
+    }
+    for (int i = 0; i < packets.length; i++) {
+      assertArrayEquals(packets[i], out.packets.get(i));
+    }
+    writer.close();
+  }
+}
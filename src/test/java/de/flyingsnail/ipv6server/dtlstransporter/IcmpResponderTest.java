@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IcmpResponderTest {
+
+  /** A BufferWriter collecting copies of all written packets, like the TunWriter */
+  private static class CapturingWriter implements BufferWriter {
+    final List<ByteBuffer> packets = new ArrayList<>();
+
+    @Override
+    public void write(ByteBuffer src) {
+      ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+      copy.put(src.duplicate()).flip();
+      packets.add(copy);
+    }
+
+    @Override
+    public short verifyHeaderReturnPacketLength(ByteBuffer bb) {
+      return bb.getShort(bb.position() + IPv6InputHandler.IPV6PACKET_LENGTH_OFFSET);
+    }
+  }
+
+  private static ByteBuffer packet(String source, String destination, int payloadLength) throws Exception {
+    ByteBuffer bb = ByteBuffer.allocate(IPv6InputHandler.IPV6PACKET_HEADER_LENGTH + payloadLength);
+    bb.putInt(6 << 28);
+    bb.putShort((short)payloadLength);
+    bb.put((byte)17); // UDP
+    bb.put((byte)50);
+    bb.put(InetAddress.getByName(source).getAddress());
+    bb.put(InetAddress.getByName(destination).getAddress());
+    while (bb.hasRemaining()) {
+      bb.put((byte)bb.position());
+    }
+    bb.flip();
+    return bb;
+  }
+
+  private static int onesComplementSum(ByteBuffer message) {
+    // pseudo header plus ICMPv6 message; a correct checksum makes the sum 0xffff
+    long sum = 0;
+    for (int i = 8; i < 40; i += 2) {
+      sum += message.getShort(i) & 0xffff;
+    }
+    int icmpLength = message.limit() - 40;
+    sum += icmpLength + IcmpResponder.NEXT_HEADER_ICMPV6;
+    for (int i = 40; i < message.limit(); i += 2) {
+      sum += i + 1 < message.limit() ? message.getShort(i) & 0xffff : (message.get(i) & 0xff) << 8;
+    }
+    while ((sum >>> 16) != 0) {
+      sum = (sum & 0xffff) + (sum >>> 16);
+    }
+    return (int)sum;
+  }
+
+  @Test
+  public void testPacketTooBig() throws Exception {
+    CapturingWriter out = new CapturingWriter();
+    IcmpResponder responder = new IcmpResponder(null, 100, 1000, 10000);
+    ByteBuffer invoking = packet("2001:db8::5", "2a06:dead:beef:affe::42", 1500);
+
+    responder.sendPacketTooBig(invoking, 1300, out);
+
+    assertEquals(1, out.packets.size());
+    assertEquals(0, invoking.position());
+    ByteBuffer message = out.packets.get(0);
+    // never larger than the IPv6 minimum MTU
+    assertEquals(IcmpResponder.IPV6_MIN_MTU, message.limit());
+    assertEquals(IcmpResponder.IPV6_MIN_MTU - 40, message.getShort(4));
+    assertEquals(IcmpResponder.NEXT_HEADER_ICMPV6, message.get(6));
+    // from ::1 in the /64 of the original destination, to the original source
+    byte[] address = new byte[16];
+    message.position(8);
+    message.get(address);
+    assertEquals(InetAddress.getByName("2a06:dead:beef:affe::1"), InetAddress.getByAddress(address));
+    message.get(address);
+    assertEquals(InetAddress.getByName("2001:db8::5"), InetAddress.getByAddress(address));
+    assertEquals(IcmpResponder.TYPE_PACKET_TOO_BIG, message.get(40));
+    assertEquals(0, message.get(41));
+    assertEquals(1300, message.getInt(44));
+    // the beginning of the original packet is quoted
+    assertEquals(invoking.getLong(8), message.getLong(48 + 8));
+    assertEquals(0xffff, onesComplementSum(message));
+  }
+
+  @Test
+  public void testOddLengthChecksum() throws Exception {
+    ByteBuffer invoking = packet("2001:db8::5", "2a06:dead:beef:affe::42", 11);
+    ByteBuffer message = ByteBuffer.allocate(IcmpResponder.IPV6_MIN_MTU);
+    IcmpResponder.buildErrorMessage(message, invoking, IcmpResponder.TYPE_PACKET_TOO_BIG, 0, 1280, 0x20010db8L << 32, 1L);
+    assertEquals(40 + 8 + 51, message.limit());
+    assertEquals(0xffff, onesComplementSum(message));
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    CapturingWriter out = new CapturingWriter();
+    IcmpResponder responder = new IcmpResponder(null, 60000, 1000, 10000);
+    ByteBuffer invoking = packet("2001:db8::5", "2a06:dead:beef:affe::42", 1500);
+    responder.sendPacketTooBig(invoking, 1300, out);
+    responder.sendPacketTooBig(invoking, 1300, out);
+    assertEquals(1, out.packets.size());
+    assertEquals(1, responder.getSuppressedCount());
+
+    // another destination is not affected
+    responder.sendPacketTooBig(packet("2001:db8::6", "2a06:dead:beef:affe::42", 1500), 1300, out);
+    assertEquals(2, out.packets.size());
+  }
+
+  @Test
+  public void testDestinationUnreachableNegativeCache() throws Exception {
+    CapturingWriter out = new CapturingWriter();
+    IcmpResponder responder = new IcmpResponder(null, 0, 1000, 60000);
+    responder.sendDestinationUnreachable(packet("2001:db8::5", "2a06:dead:beef:affe::99", 20), out);
+    assertEquals(1, out.packets.size());
+    ByteBuffer message = out.packets.get(0);
+    assertEquals(IcmpResponder.TYPE_DESTINATION_UNREACHABLE, message.get(40));
+    assertEquals(IcmpResponder.CODE_ADDRESS_UNREACHABLE, message.get(41));
+    assertEquals(0xffff, onesComplementSum(message));
+
+    // the destination is remembered as unknown, even for another source
+    responder.sendDestinationUnreachable(packet("2001:db8::6", "2a06:dead:beef:affe::99", 20), out);
+    assertEquals(1, out.packets.size());
+    assertEquals(2, responder.getNoSessionCount());
+    assertEquals(1, responder.getUnreachableCount());
+  }
+
+  @Test
+  public void testNoResponseToMulticastDestination() throws Exception {
+    CapturingWriter out = new CapturingWriter();
+    IcmpResponder responder = new IcmpResponder(null, 0, 1000, 60000);
+    // the host's own MLD report and router solicitation, as read from the tun device
+    responder.sendDestinationUnreachable(packet("fe80::1", "ff02::16", 20), out);
+    responder.sendDestinationUnreachable(packet("fe80::1", "ff02::2", 20), out);
+    // a multicast destination must not become the source of an error message either
+    responder.sendPacketTooBig(packet("2001:db8::5", "ff0e::101", 1500), 1300, out);
+    assertEquals(0, out.packets.size());
+    assertEquals(2, responder.getNoSessionCount());
+    assertEquals(0, responder.getUnreachableCount());
+    assertEquals(0, responder.getPacketTooBigCount());
+
+    // with a configured source address, packet too big for a multicast destination is allowed
+    IcmpResponder configured = new IcmpResponder(
+        (Inet6Address) InetAddress.getByName("2a06:dead:beef::1"), 0, 1000, 60000);
+    configured.sendDestinationUnreachable(packet("2001:db8::5", "ff0e::101", 20), out);
+    assertEquals(0, out.packets.size());
+    configured.sendPacketTooBig(packet("2001:db8::5", "ff0e::101", 1500), 1300, out);
+    assertEquals(1, out.packets.size());
+  }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bouncycastle.tls.DatagramTransport;
+import org.junit.Test;
+
+/**
+ * Measurements of the downstream path from the tun reader to the DTLS session: a pooled direct
+ * buffer is offered to the session's OutboundQueue, and a sender thread copies it into its
+ * scratch array for sending and returns it to the pool.
+ */
+public class OutboundQueueTest {
+
+  /** A DatagramTransport that only counts the packets and bytes sent */
+  private static class CountingTransport implements DatagramTransport {
+    final AtomicLong packets = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+
+    @Override
+    public int getReceiveLimit() {
+      return 1500;
+    }
+
+    @Override
+    public int getSendLimit() {
+      return 1500;
+    }
+
+    @Override
+    public int receive(byte[] buf, int off, int len, int waitMillis) {
+      return -1;
+    }
+
+    @Override
+    public void send(byte[] buf, int off, int len) {
+      bytes.addAndGet(len);
+      packets.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static final com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  /**
+   * Read one packet the way the tun reader does: take a buffer from the pool and fill it.
+   */
+  private static ByteBuffer read(BufferPool pool, int size) {
+    final ByteBuffer packet = pool.acquire();
+    packet.put(0, (byte) 0x60).limit(size);
+    return packet;
+  }
+
+  @Test
+  public void testAllocationPerPacket() throws Exception {
+    final int packets = 200_000;
+    DrrScheduler scheduler = new DrrScheduler(4096);
+    BufferPool pool = new BufferPool(2048, 256);
+    CountingTransport transport = new CountingTransport();
+    OutboundQueue queue = new OutboundQueue(transport, 256, pool);
+    long threadId = Thread.currentThread().getId();
+
+    // warm up, so that the measured loop runs compiled code and the pool is filled
+    for (int i = 0; i < packets; i++) {
+      assertTrue(queue.offer(read(pool, 1280), scheduler));
+      scheduler.serveNext();
+    }
+    long allocatedBuffers = pool.getAllocatedCount();
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < packets; i++) {
+      queue.offer(read(pool, 1280), scheduler);
+      scheduler.serveNext();
+    }
+    long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+    assertEquals(2 * packets, transport.packets.get());
+    assertEquals("no new buffers", allocatedBuffers, pool.getAllocatedCount());
+    // each packet activates the idle queue, which costs one node of the scheduler's active list
+    // (24 bytes with compressed references); neither the packet nor its buffer is copied on the heap
+    assertTrue("allocated " + allocated / packets + " bytes per packet", allocated / packets <= 32);
+  }
+
+  @Test
+  public void testNoSharedMonitor() throws Exception {
+    final int readers = 4;
+    final int queuesPerReader = 16;
+    final int perReader = 100_000;
+    DrrScheduler scheduler = new DrrScheduler(4096);
+    BufferPool pool = new BufferPool(2048, 4096);
+    scheduler.start(2);
+    List<CountingTransport> transports = new ArrayList<>();
+    List<OutboundQueue> queues = new ArrayList<>();
+    for (int q = 0; q < readers * queuesPerReader; q++) {
+      CountingTransport transport = new CountingTransport();
+      transports.add(transport);
+      queues.add(new OutboundQueue(transport, 64, pool));
+    }
+
+    AtomicLong blocked = new AtomicLong();
+    List<Thread> threadList = new ArrayList<>();
+    for (int r = 0; r < readers; r++) {
+      final List<OutboundQueue> own = queues.subList(r * queuesPerReader, (r + 1) * queuesPerReader);
+      Thread reader = new Thread(() -> {
+        // the first rounds load classes and fill the pool, which may take locks
+        for (int i = 0; i < 10_000; i++) {
+          ByteBuffer packet = read(pool, 1280);
+          if (!own.get(i % queuesPerReader).offer(packet, scheduler)) {
+            pool.release(packet);
+          }
+        }
+        long threadId = Thread.currentThread().getId();
+        long blockedBefore = threads.getThreadInfo(threadId).getBlockedCount();
+        for (int i = 0; i < perReader; i++) {
+          ByteBuffer packet = read(pool, 40 + i % 1240);
+          if (!own.get(i % queuesPerReader).offer(packet, scheduler)) {
+            pool.release(packet);
+          }
+        }
+        blocked.addAndGet(threads.getThreadInfo(threadId).getBlockedCount() - blockedBefore);
+      }, "Tun reader #" + r);
+      threadList.add(reader);
+      reader.start();
+    }
+    for (Thread reader: threadList) {
+      reader.join();
+    }
+
+    // the readers never wait for a monitor, neither of other readers nor of the sender threads
+    assertEquals(0, blocked.get());
+    long deadline = System.currentTimeMillis() + 10_000;
+    long dropped;
+    long sent;
+    do {
+      Thread.sleep(10);
+      dropped = 0;
+      sent = 0;
+      for (OutboundQueue queue: queues) {
+        dropped += queue.getDroppedCount();
+        sent += queue.getSentCount();
+      }
+    } while (sent + dropped < readers * (10_000L + perReader) && System.currentTimeMillis() < deadline);
+    assertEquals(readers * (10_000L + perReader), sent + dropped);
+    long transmitted = 0;
+    for (CountingTransport transport: transports) {
+      transmitted += transport.packets.get();
+    }
+    assertEquals(sent, transmitted);
+  }
+
+  @Test(timeout = 60000)
+  public void testCloseRacingOffer() throws Exception {
+    final int rounds = 20_000;
+    DrrScheduler scheduler = new DrrScheduler(4096);
+    // a single buffer: one leaked by a racing close() fails the next round
+    BufferPool pool = new BufferPool(2048, 1, true, 0, 1);
+    CountingTransport transport = new CountingTransport();
+    CyclicBarrier start = new CyclicBarrier(2);
+    AtomicReference<OutboundQueue> current = new AtomicReference<>();
+    Thread closer = new Thread(() -> {
+      try {
+        for (int i = 0; i < rounds; i++) {
+          start.await();
+          current.get().close();
+          start.await();
+        }
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    closer.start();
+    for (int i = 0; i < rounds; i++) {
+      OutboundQueue queue = new OutboundQueue(transport, 4, pool);
+      current.set(queue);
+      ByteBuffer packet = read(pool, 100);
+      start.await();
+      if (!queue.offer(packet, scheduler)) {
+        pool.release(packet);
+      }
+      start.await();
+      assertEquals(0, queue.getDepth());
+    }
+    closer.join();
+  }
+}
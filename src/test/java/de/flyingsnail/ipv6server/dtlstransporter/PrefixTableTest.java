@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrefixTableTest {
+
+  private PrefixTable<String> table;
+
+  @Before
+  public void setUp() throws Exception {
+    table = new PrefixTable<>();
+  }
+
+  private static Ipv6Prefix prefix(String address, int length) throws Exception {
+    return new Ipv6Prefix((Inet6Address) InetAddress.getByName(address), length);
+  }
+
+  private static String lookup(PrefixTable<String> table, String address) throws Exception {
+    ByteBuffer bb = ByteBuffer.wrap(InetAddress.getByName(address).getAddress());
+    return table.get(bb, 0);
+  }
+
+  @Test
+  public void testLongestPrefixMatch() throws Exception {
+    table.put(prefix("2a06:dead:beef:a000::", 56), "/56");
+    table.put(prefix("2a06:dead:beef:a0ff::", 64), "/64");
+    table.put(prefix("2a06:dead:beef:a0ff::42", 128), "/128");
+
+    assertEquals("/128", lookup(table, "2a06:dead:beef:a0ff::42"));
+    assertEquals("/64", lookup(table, "2a06:dead:beef:a0ff::43"));
+    assertEquals("/56", lookup(table, "2a06:dead:beef:a012::1"));
+    assertNull(lookup(table, "2a06:dead:beef:a100::1"));
+    assertEquals(3, table.size());
+
+    // removing the more specific route exposes the less specific one
+    assertEquals("/64", table.remove(prefix("2a06:dead:beef:a0ff::", 64), "/64"));
+    assertEquals("/56", lookup(table, "2a06:dead:beef:a0ff::43"));
+    assertEquals("/128", table.getExact(prefix("2a06:dead:beef:a0ff::42", 128)));
+    assertNull(table.getExact(prefix("2a06:dead:beef:a0ff::", 64)));
+  }
+
+  @Test
+  public void testPrefixMasks() throws Exception {
+    Ipv6Prefix p = prefix("2a06:dead:beef:affe:1234::1", 60);
+    assertEquals(prefix("2a06:dead:beef:aff0::", 60), p);
+    assertEquals("2a06:dead:beef:aff0:0:0:0:0/60", p.toString());
+    byte[] inside = InetAddress.getByName("2a06:dead:beef:afff::7").getAddress();
+    byte[] outside = InetAddress.getByName("2a06:dead:beef:afef::7").getAddress();
+    assertTrue(p.contains(ByteBuffer.wrap(inside), 0));
+    assertFalse(p.contains(ByteBuffer.wrap(outside), 0));
+
+    Ipv6Prefix p72 = prefix("2a06:dead:beef:affe:12ff::", 72);
+    assertTrue(p72.contains(SessionRegistry.high(InetAddress.getByName("2a06:dead:beef:affe:1200::1").getAddress()),
+        SessionRegistry.low(InetAddress.getByName("2a06:dead:beef:affe:1200::1").getAddress())));
+    assertFalse(p72.contains(SessionRegistry.high(InetAddress.getByName("2a06:dead:beef:affe:1300::1").getAddress()),
+        SessionRegistry.low(InetAddress.getByName("2a06:dead:beef:affe:1300::1").getAddress())));
+  }
+
+  @Test
+  public void testParseCertificatePrefix() throws Exception {
+    byte[] octets = new byte[32];
+    System.arraycopy(InetAddress.getByName("2a06:dead:beef:a000::").getAddress(), 0, octets, 0, 16);
+    System.arraycopy(InetAddress.getByName("ffff:ffff:ffff:ff00::").getAddress(), 0, octets, 16, 16);
+    assertEquals(prefix("2a06:dead:beef:a000::", 56), DTLSUtils.parsePrefix(octets));
+
+    byte[] single = InetAddress.getByName("2a06:dead:beef:affe::42").getAddress();
+    assertEquals(prefix("2a06:dead:beef:affe::42", 128), DTLSUtils.parsePrefix(single));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseNonContiguousMask() throws Exception {
+    byte[] octets = new byte[32];
+    System.arraycopy(InetAddress.getByName("ffff:0:ffff::").getAddress(), 0, octets, 16, 16);
+    DTLSUtils.parsePrefix(octets);
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bouncycastle.tls.SessionParameters;
+import org.bouncycastle.tls.TlsSession;
+import org.junit.Test;
+
+public class SessionCacheTest {
+  private static final long HOUR = 3600L * 1000;
+
+  private static final Date NEXT_YEAR = new Date(System.currentTimeMillis() + 365 * 24 * HOUR);
+
+  private static class FakeSession implements TlsSession {
+    private final byte[] sessionID;
+    private boolean resumable = true;
+
+    private FakeSession(byte[] sessionID) {
+      this.sessionID = sessionID;
+    }
+
+    @Override
+    public SessionParameters exportSessionParameters() {
+      return null;
+    }
+
+    @Override
+    public byte[] getSessionID() {
+      return sessionID;
+    }
+
+    @Override
+    public void invalidate() {
+      resumable = false;
+    }
+
+    @Override
+    public boolean isResumable() {
+      return resumable;
+    }
+  }
+
+  @Test
+  public void testNewSessionIDs() {
+    SessionCache cache = new SessionCache(16, HOUR);
+    byte[] first = cache.newSessionID();
+    assertEquals(32, first.length);
+    assertFalse(Arrays.equals(first, cache.newSessionID()));
+  }
+
+  @Test
+  public void testResume() {
+    SessionCache cache = new SessionCache(16, HOUR);
+    FakeSession session = new FakeSession(cache.newSessionID());
+    cache.put(session, NEXT_YEAR);
+    assertSame(session, cache.get(session.getSessionID().clone()));
+    assertNull(cache.get(cache.newSessionID()));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void testExpiry() {
+    SessionCache noTtl = new SessionCache(16, 0);
+    FakeSession session = new FakeSession(noTtl.newSessionID());
+    noTtl.put(session, NEXT_YEAR);
+    assertNull(noTtl.get(session.getSessionID()));
+    assertEquals(0, noTtl.size());
+
+    SessionCache cache = new SessionCache(16, HOUR);
+    cache.put(session, new Date(System.currentTimeMillis() - 1));
+    assertNull(cache.get(session.getSessionID()));
+  }
+
+  @Test
+  public void testInvalidated() {
+    SessionCache cache = new SessionCache(16, HOUR);
+    FakeSession session = new FakeSession(cache.newSessionID());
+    cache.put(session, NEXT_YEAR);
+    session.invalidate();
+    assertNull(cache.get(session.getSessionID()));
+
+    FakeSession removed = new FakeSession(cache.newSessionID());
+    cache.put(removed, NEXT_YEAR);
+    cache.remove(removed.getSessionID());
+    assertFalse(removed.isResumable());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEvicted() {
+    SessionCache cache = new SessionCache(2, HOUR);
+    FakeSession a = new FakeSession(cache.newSessionID());
+    FakeSession b = new FakeSession(cache.newSessionID());
+    FakeSession c = new FakeSession(cache.newSessionID());
+    cache.put(a, NEXT_YEAR);
+    cache.put(b, NEXT_YEAR);
+    assertSame(a, cache.get(a.getSessionID()));
+    cache.put(c, NEXT_YEAR);
+    assertEquals(2, cache.size());
+    assertNull(cache.get(b.getSessionID()));
+    assertSame(a, cache.get(a.getSessionID()));
+    assertSame(c, cache.get(c.getSessionID()));
+  }
+}
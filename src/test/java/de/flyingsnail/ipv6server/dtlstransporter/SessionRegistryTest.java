@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionRegistryTest {
+
+  private SessionRegistry<String> registry;
+
+  @Before
+  public void setUp() throws Exception {
+    registry = new SessionRegistry<>();
+  }
+
+  @Test
+  public void testPutGetRemove() throws Exception {
+    Inet6Address address = (Inet6Address) InetAddress.getByName("2a06:dead:beef:affe::42");
+    assertNull(registry.put(address, "first"));
+    assertEquals("first", registry.get(address));
+    assertEquals("first", registry.put(address, "second"));
+    assertEquals(1, registry.size());
+
+    // conditional removal must not remove a replaced mapping
+    assertNull(registry.remove(address, "first"));
+    assertEquals("second", registry.get(address));
+    assertEquals("second", registry.remove(address, "second"));
+    assertNull(registry.get(address));
+    assertEquals(0, registry.size());
+  }
+
+  @Test
+  public void testGetFromPacket() throws Exception {
+    Inet6Address address = (Inet6Address) InetAddress.getByName("2a06:dead:beef:affe::1:2");
+    registry.put(address, "session");
+
+    ByteBuffer packet = ByteBuffer.allocateDirect(IPv6InputHandler.IPV6PACKET_HEADER_LENGTH + 10);
+    packet.position(24);
+    packet.put(address.getAddress());
+    packet.position(0);
+    assertEquals("session", registry.get(packet, 24));
+    assertEquals(0, packet.position());
+    assertNull(registry.get(packet, 8));
+  }
+
+  @Test
+  public void testGrowAndIterate() throws Exception {
+    final long high = 0x2a06deadbeefaffeL;
+    final int count = 100_000;
+    for (long i = 0; i < count; i++) {
+      registry.put(high, i, Long.toString(i));
+    }
+    assertEquals(count, registry.size());
+    for (long i = 0; i < count; i += 2) {
+      assertEquals(Long.toString(i), registry.remove(high, i, null));
+    }
+    assertEquals(count / 2, registry.size());
+    for (long i = 0; i < count; i++) {
+      if (i % 2 == 0) {
+        assertNull(registry.get(high, i));
+      } else {
+        assertEquals(Long.toString(i), registry.get(high, i));
+      }
+    }
+    int iterated = 0;
+    for (String value: registry.values()) {
+      assertEquals(1, Long.parseLong(value) % 2);
+      iterated++;
+    }
+    assertEquals(count / 2, iterated);
+  }
+
+  @Test
+  public void testToInet6Address() throws Exception {
+    Inet6Address address = (Inet6Address) InetAddress.getByName("2a06:dead:beef:affe::42");
+    byte[] raw = address.getAddress();
+    assertEquals(address, SessionRegistry.toInet6Address(SessionRegistry.high(raw), SessionRegistry.low(raw)));
+    // IPv4 mapped addresses must stay Inet6Address
+    Inet6Address mapped = SessionRegistry.toInet6Address(0L, 0x0000ffff7f000001L);
+    assertSame(Inet6Address.class, mapped.getClass());
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SharedMemoryRingTest {
+
+  /** A BufferWriter checking the fill pattern and counting the packets */
+  private static class CheckingWriter implements BufferWriter {
+    int packets;
+
+    @Override
+    public void write(ByteBuffer bb) {
+      assertEquals(1000 + packets % 300, bb.remaining());
+      for (int i = bb.position(); i < bb.limit(); i++) {
+        assertEquals((byte)packets, bb.get(i));
+      }
+      packets++;
+    }
+
+    @Override
+    public short verifyHeaderReturnPacketLength(ByteBuffer bb) {
+      return 0;
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testWrapAround() throws Exception {
+    Path file = Files.createTempFile("ring", ".ring");
+    try {
+      SharedMemoryRing producer = SharedMemoryRing.create(file, 262144);
+      SharedMemoryRing consumer = SharedMemoryRing.attach(file);
+      CheckingWriter out = new CheckingWriter();
+      int written = 0;
+      // several times the capacity, so that the ring wraps with odd sized packets
+      for (int round = 0; round < 20; round++) {
+        for (int i = 0; i < 100; i++, written++) {
+          ByteBuffer packet = ByteBuffer.allocate(1000 + written % 300);
+          while (packet.hasRemaining()) {
+            packet.put((byte)written);
+          }
+          packet.flip();
+          producer.write(packet);
+        }
+        while (out.packets < written) {
+          consumer.readPackets(out);
+        }
+      }
+      assertEquals(2000, out.packets);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testCloseStopsIdleConsumer() throws Exception {
+    Path file = Files.createTempFile("ring", ".ring");
+    try {
+      SharedMemoryRing producer = SharedMemoryRing.create(file, 262144);
+      SharedMemoryRing consumer = SharedMemoryRing.attach(file);
+      CheckingWriter out = new CheckingWriter();
+      AtomicReference<Throwable> result = new AtomicReference<>();
+      Thread reader = new Thread(() -> {
+        try {
+          while (true) {
+            consumer.readPackets(out);
+          }
+        } catch (Throwable t) {
+          result.set(t);
+        }
+      });
+      reader.start();
+
+      // let the consumer go idle, parking for the longest interval
+      Thread.sleep(200);
+      long parkedBefore = consumer.getParkCount();
+      Thread.sleep(500);
+      long parked = consumer.getParkCount() - parkedBefore;
+      // parking 50 microseconds at a time would mean thousands of wake-ups
+      assertTrue("idle consumer woke up " + parked + " times", parked < 500);
+
+      consumer.close();
+      reader.join(1000);
+      assertFalse(reader.isAlive());
+      assertTrue(result.get() instanceof ClosedChannelException);
+      assertFalse(consumer.isOpen());
+
+      producer.close();
+      try {
+        producer.write(ByteBuffer.allocate(1000));
+        fail("write to closed ring");
+      } catch (ClosedChannelException e) {
+        // expected
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+  @Test
+  public void testBurstThenPolice() {
+    // one byte per second refills nothing noticeable during the test
+    TokenBucket bucket = new TokenBucket(1, 3000);
+    assertTrue(bucket.tryConsume(1500));
+    assertTrue(bucket.tryConsume(1500));
+    assertFalse(bucket.tryConsume(1));
+    assertFalse(bucket.tryConsume(1500));
+    assertEquals(2, bucket.getDroppedCount());
+  }
+
+  @Test
+  public void testRefill() throws Exception {
+    TokenBucket bucket = new TokenBucket(1_000_000, 1500);
+    assertTrue(bucket.tryConsume(1500));
+    assertFalse(bucket.tryConsume(1500));
+    // 1500 bytes take 1.5 ms at 1 MB/s
+    Thread.sleep(5);
+    assertTrue(bucket.tryConsume(1500));
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TunWriterTest {
+
+  /** A BufferWriter recording producer and sequence number of each packet */
+  private static class RecordingWriter implements BufferWriter {
+    final List<Long> packets = new ArrayList<>();
+
+    @Override
+    public synchronized void write(ByteBuffer bb) {
+      packets.add(bb.getLong(bb.position()));
+      notifyAll();
+    }
+
+    @Override
+    public short verifyHeaderReturnPacketLength(ByteBuffer bb) {
+      return 0;
+    }
+
+    synchronized void await(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (packets.size() < count && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+    }
+  }
+
+  @Test
+  public void testManyProducersKeepOrder() throws Exception {
+    final int producers = 4;
+    final int perProducer = 10_000;
+    RecordingWriter tun = new RecordingWriter();
+    TunWriter writer = new TunWriter(tun, new BufferPool(64, 16), producers * perProducer);
+    Thread writerThread = new Thread(writer, "Tun writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      final long producer = p;
+      Thread thread = new Thread(() -> {
+        ByteBuffer bb = ByteBuffer.allocate(40);
+        try {
+          for (int i = 0; i < perProducer; i++) {
+            bb.clear();
+            bb.putLong(0, (producer << 32) | i);
+            writer.write(bb);
+          }
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread: threads) {
+      thread.join();
+    }
+    tun.await(producers * perProducer);
+    writerThread.interrupt();
+
+    assertEquals(producers * perProducer, tun.packets.size());
+    long[] next = new long[producers];
+    for (long packet: tun.packets) {
+      int producer = (int)(packet >>> 32);
+      assertEquals(next[producer]++, packet & 0xffffffffL);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2026 Dr. Andreas Feldner (pelzi).
+ *
+ *     This program is free software; you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation; either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License along
+ *     with this program; if not, write to the Free Software Foundation, Inc.,
+ *     51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Contact information and current version at http://www.flying-snail.de/IPv6Droid
+ */
+package de.flyingsnail.ipv6server.dtlstransporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import de.flyingsnail.ipv6server.dtlstransporter.UpstreamValidator.DropReason;
+
+public class UpstreamValidatorTest {
+
+  private static ByteBuffer packet(String source, int payloadLength) throws Exception {
+    ByteBuffer bb = ByteBuffer.allocate(IPv6InputHandler.IPV6PACKET_HEADER_LENGTH + payloadLength);
+    bb.put(0, (byte) 0x60);
+    bb.putShort(IPv6InputHandler.IPV6PACKET_LENGTH_OFFSET, (short) payloadLength);
+    bb.position(IPv6InputHandler.IPV6PACKET_SOURCE_OFFSET);
+    bb.put(InetAddress.getByName(source).getAddress());
+    bb.clear();
+    return bb;
+  }
+
+  @Test
+  public void testDropReasons() throws Exception {
+    UpstreamValidator validator = new UpstreamValidator();
+    Ipv6Prefix prefix = new Ipv6Prefix((Inet6Address) InetAddress.getByName("2a06:dead:beef:a000::"), 56);
+
+    assertNull(validator.validate(prefix, packet("2a06:dead:beef:a0ff::1", 8)));
+    assertEquals(DropReason.SOURCE_OUTSIDE_PREFIX, validator.validate(prefix, packet("2a06:dead:beef:a100::1", 8)));
+    ByteBuffer wrongLength = packet("2a06:dead:beef:a0ff::1", 8);
+    wrongLength.limit(wrongLength.limit() - 1);
+    assertEquals(DropReason.LENGTH_MISMATCH, validator.validate(prefix, wrongLength));
+    ByteBuffer ipv4 = packet("2a06:dead:beef:a0ff::1", 8);
+    ipv4.put(0, (byte) 0x45);
+    assertEquals(DropReason.NOT_IPV6, validator.validate(prefix, ipv4));
+    assertEquals(DropReason.TOO_SHORT, validator.validate(prefix, ByteBuffer.allocate(20)));
+
+    assertEquals(1, validator.getValidCount());
+    assertEquals(4, validator.getDropCount());
+    assertEquals(1, validator.getDropCount(DropReason.NOT_IPV6));
+  }
+
+  @Test
+  public void testNoAllocation() throws Exception {
+    UpstreamValidator validator = new UpstreamValidator();
+    Ipv6Prefix prefix = new Ipv6Prefix((Inet6Address) InetAddress.getByName("2a06:dead:beef:a000::"), 56);
+    ByteBuffer valid = packet("2a06:dead:beef:a0ff::1", 1240);
+    ByteBuffer invalid = packet("2a06:dead:beef:a100::1", 1240);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+
+    // warm up, so that the measured loop runs compiled code
+    for (int i = 0; i < 100_000; i++) {
+      validator.validate(prefix, valid);
+      validator.validate(prefix, invalid);
+      System.nanoTime();
+    }
+    long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < 100_000; i++) {
+      validator.validate(prefix, valid);
+      validator.validate(prefix, invalid);
+      System.nanoTime();
+    }
+    long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+    // allow for the measurement itself, far below one byte per packet
+    assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+  }
+}